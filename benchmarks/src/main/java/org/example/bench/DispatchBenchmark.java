@@ -0,0 +1,88 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение режимов отправки CrptApi на локальной заглушке:
+ * поток на запрос против пула с ограничением одновременно выполняемых запросов.
+ * Одна операция - отправка пачки запросов и ожидание всех ответов.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"THREAD_PER_REQUEST", "BOUNDED_POOL"})
+    public CrptApi.DispatchMode mode;
+
+    @Param({"5"})
+    public long latencyMillis;
+
+    @Param({"256"})
+    public int maxInFlight;
+
+    private StubServer server;
+
+    private CrptApi api;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // CrptApi пишет в stdout на каждый запрос, в бенчмарке этот вывод не нужен
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new StubServer(latencyMillis);
+        CrptApi.Builder builder = CrptApi.builder()
+                .requestLimit(BATCH, TimeUnit.MILLISECONDS)
+                .requestUri(server.uri());
+        if (mode == CrptApi.DispatchMode.BOUNDED_POOL) {
+            builder.boundedPool(maxInFlight);
+        }
+        api = builder.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        api.shutdownService();
+        server.close();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendBatch() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            api.addRequest(new CrptApi.RequestBodyDTO(), response -> done.countDown());
+        }
+        // Ошибка отправки не вызывает callback, поэтому ожидание ограничено по времени
+        if (!done.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("batch not completed: " + done.getCount() + " responses missing");
+        }
+    }
+}
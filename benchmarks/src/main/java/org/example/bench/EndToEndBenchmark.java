@@ -0,0 +1,88 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность CrptApi от {@link CrptApi#addRequestAsync} до завершения future на локальной заглушке:
+ * сериализация, очередь, ограничитель, отправка через sendAsync и завершение future исполнителем callback.
+ * Лимит запросов не ограничивает пачку, поэтому измеряется собственная стоимость пути запроса.
+ * Параметр logLevel показывает цену логирования этапов каждого запроса.
+ * <p>
+ * Одна операция - отправка пачки запросов и ожидание всех ответов.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"DEBUG", "OFF"})
+    public CrptApi.LogLevel logLevel;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    @Param({"256"})
+    public int maxInFlight;
+
+    private StubServer server;
+
+    private CrptApi api;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // Лог пишется, но не печатается, чтобы вывод JMH оставался читаемым
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new StubServer(latencyMillis);
+        api = CrptApi.builder()
+                .requestLimit(BATCH, TimeUnit.MILLISECONDS)
+                .requestUri(server.uri())
+                .serializationMode(CrptApi.SerializationMode.COMPACT)
+                .boundedPool(maxInFlight)
+                .logLevel(logLevel)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        api.shutdownService();
+        server.close();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendBatch() throws Exception {
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            responses[i] = api.addRequestAsync(new CrptApi.RequestBodyDTO());
+        }
+        CompletableFuture.allOf(responses).get(30, TimeUnit.SECONDS);
+    }
+}
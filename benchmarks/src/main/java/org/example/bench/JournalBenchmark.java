@@ -0,0 +1,99 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Пропускная способность {@link CrptApi#addRequest} с журналом запросов:
+ * без журнала, со сбросом на диск каждой записи и с групповым сбросом.
+ * Журнал и очередь пересоздаются на каждой итерации, каталог журнала - во временном каталоге.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class JournalBenchmark {
+
+    @Param({"NONE", "FSYNC_PER_RECORD", "GROUP_COMMIT"})
+    public String journal;
+
+    private final CrptApi.RequestBodyDTO dto = new CrptApi.RequestBodyDTO();
+
+    private StubServer server;
+
+    private Path directory;
+
+    private CrptApi api;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new StubServer(0);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        // Одно разрешение в час: измеряется только добавление запросов
+        CrptApi.Builder builder = CrptApi.builder()
+                .requestLimit(1, TimeUnit.HOURS)
+                .serializationMode(CrptApi.SerializationMode.COMPACT)
+                .requestUri(server.uri());
+        if (!"NONE".equals(journal)) {
+            directory = Files.createTempDirectory("crpt-journal-bench");
+            builder.journal(directory, CrptApi.JournalSyncMode.valueOf(journal));
+        }
+        api = builder.build();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        api.shutdownService();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+            directory = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.close();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void addRequest() {
+        api.addRequest(dto, null);
+    }
+}
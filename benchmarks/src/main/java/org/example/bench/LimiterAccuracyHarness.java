@@ -0,0 +1,87 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Проверка точности стратегий ограничения частоты запросов.
+ * Ограничители прогоняются на виртуальном времени жадной нагрузкой с паузами случайной длины,
+ * для каждой стратегии печатается наибольшее количество выдач в любом окне длиной window.
+ * <p>
+ * Запуск: {@code java -cp benchmarks/target/benchmarks.jar org.example.bench.LimiterAccuracyHarness [limit] [seeds]}
+ */
+public final class LimiterAccuracyHarness {
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private static final long DURATION_NANOS = 120 * WINDOW_NANOS;
+
+    private LimiterAccuracyHarness() {
+    }
+
+    public static void main(String[] args) {
+        int limit = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seeds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.printf("limit=%d per %d ms, %d runs of %d s each%n", limit, WINDOW_NANOS / 1_000_000, seeds, DURATION_NANOS / WINDOW_NANOS);
+        System.out.printf("%-24s %12s %14s %10s%n", "strategy", "granted/s", "worst window", "ratio");
+        for (CrptApi.LimiterStrategy strategy : CrptApi.LimiterStrategy.values()) {
+            int worst = 0;
+            long granted = 0;
+            for (int seed = 0; seed < seeds; seed++) {
+                long[] grants = simulate(strategy.create(limit, WINDOW_NANOS, 0), new SplittableRandom(seed));
+                granted += grants.length;
+                worst = Math.max(worst, worstWindow(grants, WINDOW_NANOS));
+            }
+            System.out.printf("%-24s %12.1f %14d %10.2f%n", strategy, (double) granted / seeds / (DURATION_NANOS / WINDOW_NANOS),
+                    worst, (double) worst / limit);
+        }
+    }
+
+    /**
+     * Прогоняет ограничитель жадной нагрузкой: запрос берётся сразу, как только разрешение доступно,
+     * время от времени поток запросов прерывается паузой до двух окон
+     *
+     * @return отсортированные моменты выдачи разрешений
+     */
+    private static long[] simulate(CrptApi.RateLimiter limiter, SplittableRandom random) {
+        long start = System.nanoTime();
+        long now = start;
+        long[] grants = new long[1024];
+        int size = 0;
+        while (now - start < DURATION_NANOS) {
+            if (random.nextInt(1000) == 0) {
+                now += random.nextLong(2 * WINDOW_NANOS);
+                continue;
+            }
+            long wait = limiter.nanosUntilPermit(now);
+            if (wait > 0) {
+                now += wait;
+                continue;
+            }
+            limiter.acquire(now);
+            if (size == grants.length) {
+                grants = Arrays.copyOf(grants, size * 2);
+            }
+            grants[size++] = now;
+        }
+        return Arrays.copyOf(grants, size);
+    }
+
+    /**
+     * Наибольшее количество моментов в полуинтервале [t, t + window) по всем t
+     */
+    static int worstWindow(long[] grants, long windowNanos) {
+        int worst = 0;
+        int tail = 0;
+        for (int head = 0; head < grants.length; head++) {
+            while (grants[head] - grants[tail] >= windowNanos) {
+                tail++;
+            }
+            worst = Math.max(worst, head - tail + 1);
+        }
+        return worst;
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость получения разрешения ограничителем, как в цикле диспетчера CrptApi:
+ * {@link CrptApi.RateLimiter#nanosUntilPermit} и, если разрешение доступно, {@link CrptApi.RateLimiter#acquire}.
+ * Лимит - миллион разрешений в секунду, поэтому измеряются и выдача, и отказ с расчётом ожидания.
+ * COMPOSITE - как в CrptApi: token bucket на миллион в секунду и строгие потолки скользящего окна
+ * для минутного и суточного уровней.
+ * <p>
+ * Ограничитель используется одним потоком, как в диспетчере, поэтому бенчмарк однопоточный.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LimiterBenchmark {
+
+    private static final int LIMIT = 1_000;
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Param({"TOKEN_BUCKET", "SLIDING_WINDOW_LOG", "SLIDING_WINDOW_COUNTER", "GCRA", "COMPOSITE"})
+    public String limiter;
+
+    private CrptApi.RateLimiter rateLimiter;
+
+    @Setup
+    public void setUp() {
+        if ("COMPOSITE".equals(limiter)) {
+            Map<CrptApi.RateLimitTier, CrptApi.RateLimiter> tiers = new LinkedHashMap<>();
+            CrptApi.RateLimitTier primary = new CrptApi.RateLimitTier(LIMIT * 1_000, TimeUnit.SECONDS);
+            tiers.put(primary, CrptApi.LimiterStrategy.TOKEN_BUCKET.create(primary.limit(), primary.windowNanos(), 0));
+            // Минутный и суточный уровни не ограничивают выдачу, но проверяются на каждом вызове
+            for (CrptApi.RateLimitTier tier : new CrptApi.RateLimitTier[]{
+                    new CrptApi.RateLimitTier(LIMIT * 60_000, TimeUnit.MINUTES),
+                    new CrptApi.RateLimitTier(2_000_000_000, TimeUnit.DAYS)}) {
+                tiers.put(tier, CrptApi.LimiterStrategy.SLIDING_WINDOW_COUNTER.create(tier.limit(), tier.windowNanos(), 0));
+            }
+            rateLimiter = new CrptApi.CompositeRateLimiter(tiers);
+        } else {
+            rateLimiter = CrptApi.LimiterStrategy.valueOf(limiter).create(LIMIT, WINDOW_NANOS, 0);
+        }
+    }
+
+    @Benchmark
+    public long acquire() {
+        long now = System.nanoTime();
+        long waitNanos = rateLimiter.nanosUntilPermit(now);
+        if (waitNanos <= 0) {
+            rateLimiter.acquire(now);
+        }
+        return waitNanos;
+    }
+}
@@ -0,0 +1,108 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Занимаемая память и паузы сборщика мусора при большой очереди запросов, тела запросов в куче против вне кучи.
+ * В очередь добавляется backlog различных документов при лимите один запрос в час, затем печатаются
+ * размер кучи и direct памяти после полной сборки, время полной сборки и паузы молодых сборок
+ * при создании мусора на фоне очереди.
+ * <p>
+ * Каждый режим запускается в отдельной JVM с одинаковыми настройками кучи:
+ * {@code java -Xmx3g -cp benchmarks/target/benchmarks.jar org.example.bench.PayloadFootprintHarness HEAP 1000000}
+ */
+public final class PayloadFootprintHarness {
+
+    private static final long CHURN_BYTES = 8L << 30;
+
+    private static volatile Object sink;
+
+    private PayloadFootprintHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CrptApi.PayloadStorage storage = args.length > 0 ? CrptApi.PayloadStorage.valueOf(args[0]) : CrptApi.PayloadStorage.HEAP;
+        int backlog = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try (StubServer server = new StubServer(0)) {
+            CrptApi api = CrptApi.builder()
+                    .requestLimit(1, TimeUnit.HOURS)
+                    .requestUri(server.uri())
+                    .payloadStorage(storage)
+                    .build();
+
+            long[] before = gcTotals();
+            long start = System.nanoTime();
+            for (int i = 0; i < backlog; i++) {
+                api.addRequest(document(i), null);
+            }
+            long enqueueMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long[] afterEnqueue = gcTotals();
+
+            System.gc();
+            long[] beforeFull = gcTotals();
+            System.gc();
+            long[] afterFull = gcTotals();
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+            // Короткоживущий мусор: молодые сборки на фоне удерживаемой очереди
+            for (long allocated = 0; allocated < CHURN_BYTES; allocated += 4096) {
+                sink = new byte[4096];
+            }
+            long[] afterChurn = gcTotals();
+
+            out.printf("storage=%s backlog=%d enqueue=%d ms%n", storage, backlog, enqueueMillis);
+            out.printf("  enqueue GCs: %d, pause %d ms%n", afterEnqueue[0] - before[0], afterEnqueue[1] - before[1]);
+            out.printf("  live heap after full GC: %.1f MB, direct memory: %.1f MB%n", heapUsed / 1048576.0, directUsed() / 1048576.0);
+            out.printf("  full GC: %d ms%n", afterFull[1] - beforeFull[1]);
+            out.printf("  churn %d GB: %d GCs, pause %d ms%n", CHURN_BYTES >> 30, afterChurn[0] - afterFull[0], afterChurn[1] - afterFull[1]);
+
+            List<CrptApi.RequestBodyDTO> unsent = api.shutdownService();
+            out.printf("  unsent: %d%n", unsent.size());
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Документ с уникальными идентификаторами и несколькими товарами, как в реальной очереди
+     */
+    private static CrptApi.RequestBodyDTO document(int i) {
+        CrptApi.RequestBodyDTO dto = new CrptApi.RequestBodyDTO();
+        dto.doc_id = "doc-" + i;
+        dto.reg_number = "reg-" + i;
+        CrptApi.Product first = new CrptApi.Product();
+        first.uit_code = "010460406000600021N4N57RSCBUZTQ" + i;
+        CrptApi.Product second = new CrptApi.Product();
+        second.uit_code = "010460406000600021N4N57RSCBUZTR" + i;
+        dto.products = List.of(first, second);
+        return dto;
+    }
+
+    private static long[] gcTotals() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    private static long directUsed() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+    }
+}
@@ -0,0 +1,117 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Добавление в очередь запросов из нескольких потоков при одном потребителе:
+ * кольцевой буфер {@link CrptApi.MpscRingBuffer} против {@link LinkedBlockingDeque} той же ёмкости.
+ * Потоки JMH - производители, потребитель работает в отдельном потоке, как диспетчер CrptApi.
+ * <p>
+ * Количество производителей задаётся методами бенчмарка: 1, 4, 16 и 64 потока,
+ * поэтому весь диапазон прогоняется и при запуске benchmarks.jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueContentionBenchmark {
+
+    private static final int CAPACITY = 1 << 14;
+
+    private static final Object ELEMENT = new Object();
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    @Param({"ring", "linked"})
+    public String queue;
+
+    private CrptApi.MpscRingBuffer<Object> ring;
+
+    private LinkedBlockingDeque<Object> linked;
+
+    private Thread consumer;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        if ("ring".equals(queue)) {
+            ring = new CrptApi.MpscRingBuffer<>(CAPACITY);
+            consumer = new Thread(() -> {
+                try {
+                    while (true) {
+                        ring.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        } else {
+            linked = new LinkedBlockingDeque<>(CAPACITY);
+            consumer = new Thread(() -> {
+                try {
+                    while (true) {
+                        linked.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        consumer.interrupt();
+        consumer.join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void put1() throws InterruptedException {
+        put();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void put4() throws InterruptedException {
+        put();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void put16() throws InterruptedException {
+        put();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void put64() throws InterruptedException {
+        put();
+    }
+
+    private void put() throws InterruptedException {
+        if (ring != null) {
+            ring.put(ELEMENT);
+        } else {
+            linked.put(ELEMENT);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.example.bench;
+
+import org.example.CrptApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость {@link CrptApi#addRequest}: сериализация DTO и постановка в очередь, PRETTY против COMPACT.
+ * Выделение памяти на операцию - с профилировщиком {@code -prof gc}.
+ * Размер тела запроса на проводе измеряется заглушкой при подготовке и печатается в вывод форка.
+ * <p>
+ * Очередь пересоздаётся на каждой итерации, чтобы накопленные запросы не влияли на измерения.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"PRETTY", "COMPACT"})
+    public CrptApi.SerializationMode mode;
+
+    private final CrptApi.RequestBodyDTO dto = new CrptApi.RequestBodyDTO();
+
+    private StubServer server;
+
+    private CrptApi api;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void measureWireBytes() throws Exception {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new StubServer(0);
+        CrptApi probe = newApi();
+        probe.addRequestAsync(dto).get(30, TimeUnit.SECONDS);
+        probe.shutdownService();
+        System.err.printf("%s: %d bytes on the wire per request%n", mode, server.bytesReceived() / server.requestsReceived());
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        api = newApi();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        api.shutdownService();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        server.close();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void addRequest() {
+        api.addRequest(dto, null);
+    }
+
+    private CrptApi newApi() {
+        // Одно разрешение в час: первый запрос уходит на заглушку, остальные остаются в очереди
+        return CrptApi.builder()
+                .requestLimit(1, TimeUnit.HOURS)
+                .serializationMode(mode)
+                .requestUri(server.uri())
+                .build();
+    }
+}
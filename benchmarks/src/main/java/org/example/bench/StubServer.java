@@ -0,0 +1,87 @@
+package org.example.bench;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Локальная заглушка API ismp.crpt.ru для бенчмарков
+ */
+public final class StubServer implements AutoCloseable {
+
+    private static final String PATH = "/api/v3/lk/documents/create";
+
+    private static final byte[] RESPONSE = "{\"value\":\"ok\"}".getBytes();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Запускает заглушку на свободном порту localhost
+     *
+     * @param latencyMillis искусственная задержка ответа в миллисекундах
+     */
+    public StubServer(long latencyMillis) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(PATH, exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                bytes.add(body.readAllBytes().length);
+            }
+            requests.increment();
+            if (latencyMillis > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return URI заглушки
+     */
+    public URI uri() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + PATH);
+    }
+
+    /**
+     * @return количество полученных запросов
+     */
+    public long requestsReceived() {
+        return requests.sum();
+    }
+
+    /**
+     * @return суммарный размер полученных тел запросов в байтах
+     */
+    public long bytesReceived() {
+        return bytes.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -2,28 +2,97 @@ package org.example;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateSerializer;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 import jakarta.validation.constraints.NotNull;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Сервис отправки запросов с ограничением по количеству отправок на единицу времени
@@ -37,17 +106,77 @@ public class CrptApi {
     // URL для запросов
     private static final String REQUEST_URL = "https://ismp.crpt.ru/api/v3/lk/documents/create";
 
+    // Ограничение одновременно выполняемых запросов по умолчанию для режима BOUNDED_POOL
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    // Время подключения к серверу по умолчанию
+    private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    // Время ожидания ответа на запрос по умолчанию
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    // Значение срока отправки для запросов без срока
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // Наибольшее время ожидания диспетчером новой записи, после которого он проверяет очередь повторов
+    private static final long RETRY_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
     // Форматтер для логирования
     private static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("HH-mm-ss");
 
+    // Асинхронный лог
+    private final AsyncLogger logger;
+
     // Очередь записей, содержащих JSON строку запроса и callback
-    private final LinkedBlockingDeque<RequestRecord> requestRecords = new LinkedBlockingDeque<>();
+    private final RequestQueue requestRecords;
+
+    // Запись, извлечённая диспетчером, но не отправленная к моменту остановки сервиса
+    private volatile RequestRecord heldRecord;
+
+    // Потоки повторной постановки недоставленных запросов, останавливаются до выгрузки очереди
+    private final Set<Thread> redrivers = ConcurrentHashMap.newKeySet();
+
+    // Фабрика потоков повторной постановки
+    private final ThreadFactory redriveThreadFactory = threadFactory("crpt-redrive");
+
+    // Поведение при заполненной очереди
+    private final OverflowPolicy overflowPolicy;
+
+    // Время ожидания места в очереди для политики BLOCK_WITH_TIMEOUT
+    private final Duration offerTimeout;
+
+    // Политика повтора неудачных запросов
+    private final RetryPolicy retryPolicy;
+
+    // Запросы, ожидающие повторной отправки, упорядочены по времени, раньше которого повтор не выполняется
+    private final DelayQueue<RetryEntry> retries = new DelayQueue<>();
+
+    // Хранилище запросов, отправка которых окончательно не удалась, null если не задано
+    private final DeadLetterSink deadLetterSink;
+
+    // Автоматический выключатель отправки при отказе сервера, null если не включён
+    private final CircuitBreaker circuitBreaker;
+
+    // Определяет участника, от имени которого отправляется запрос, null если справедливая очередь не включена
+    private final Function<RequestBodyDTO, String> tenantExtractor;
+
+    // Журнал запросов, null если журнал не включён
+    private final RequestJournal journal;
 
     // JSON writer
-    private final ObjectWriter writer = new ObjectMapper().writer().withDefaultPrettyPrinter();
+    private final ObjectWriter writer;
+
+    // Арена тел запросов вне кучи, null если тела хранятся в куче
+    private final PayloadArena payloadArena;
 
     // HTTP клиент
-    private final HttpClient client = HttpClient.newBuilder().build();
+    private final HttpClient client;
+
+    // Время ожидания ответа на один запрос
+    private final Duration requestTimeout;
+
+    // Срок отправки запроса, отсчитывается от его добавления, null если срока нет
+    private final Duration requestDeadline;
 
     // Лимит запросов в единицу времени
     private final Integer requestLimit;
@@ -55,10 +184,34 @@ public class CrptApi {
     // Единица времени ограничения запросов
     private final TimeUnit timeUnit;
 
-    // Сервис исполнения потоков
-    private final ScheduledExecutorService executorService;
+    // URI для запросов
+    private final URI requestUri;
+
+    // Поток диспетчера, выбирающего запросы из очереди
+    private final ExecutorService executorService;
+
+    // Ограничитель частоты запросов, используется только потоком диспетчера
+    private final RateLimiter rateLimiter;
+
+    // Режим исполнения отправки запросов
+    private final DispatchMode dispatchMode;
+
+    // Пул потоков отправки, null в режиме THREAD_PER_REQUEST
+    private final ExecutorService sendExecutor;
 
-    // Итератор номера для логов
+    // Ограничение одновременно выполняемых запросов, null в режиме THREAD_PER_REQUEST
+    private final Semaphore inFlight;
+
+    // Исполнитель callback и завершения future
+    private final CallbackExecutor callbackExecutor;
+
+    // Метрики сервиса
+    private final MetricsRegistry metrics;
+
+    // Сервер метрик в формате Prometheus, null если не включён
+    private final HttpServer metricsServer;
+
+    // Итератор номера запросов для логов и событий JFR
     private final AtomicInteger num = new AtomicInteger(1);
 
 
@@ -69,107 +222,5041 @@ public class CrptApi {
      * @param timeUnit     единица времени
      */
     public CrptApi(@NotNull Integer requestLimit, @NotNull TimeUnit timeUnit) {
-        this.requestLimit = requestLimit;
-        this.timeUnit = timeUnit;
-        this.executorService = Executors.newScheduledThreadPool(requestLimit);
+        this(builder().requestLimit(requestLimit, timeUnit));
+    }
+
+    /**
+     * Создаёт экземпляр сервиса отправки запросов с заданной стратегией ограничения
+     *
+     * @param requestLimit    количество запросов
+     * @param timeUnit        единица времени
+     * @param limiterStrategy стратегия ограничения частоты запросов
+     */
+    public CrptApi(@NotNull Integer requestLimit, @NotNull TimeUnit timeUnit, @NotNull LimiterStrategy limiterStrategy) {
+        this(builder().requestLimit(requestLimit, timeUnit).limiterStrategy(limiterStrategy));
+    }
+
+    /**
+     * Создаёт экземпляр сервиса по настройкам билдера
+     *
+     * @param builder настройки сервиса
+     */
+    private CrptApi(Builder builder) {
+        this.requestLimit = Objects.requireNonNull(builder.requestLimit, "requestLimit");
+        this.logger = new AsyncLogger(builder.logLevel, builder.logSampling);
+        this.timeUnit = Objects.requireNonNull(builder.timeUnit, "timeUnit");
+        this.requestUri = builder.requestUri;
+        this.client = HttpClient.newBuilder().connectTimeout(builder.connectTimeout).build();
+        this.requestTimeout = builder.requestTimeout;
+        this.requestDeadline = builder.requestDeadline;
+        this.writer = builder.serializationMode == SerializationMode.COMPACT
+                ? new ObjectMapper().writer() : new ObjectMapper().writer().withDefaultPrettyPrinter();
+        this.payloadArena = builder.payloadStorage == PayloadStorage.OFF_HEAP ? new PayloadArena() : null;
+        this.dispatchMode = builder.dispatchMode;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.offerTimeout = builder.offerTimeout;
+        this.retryPolicy = builder.retryPolicy;
+        this.deadLetterSink = builder.deadLetterSink;
+        this.circuitBreaker = builder.circuitOpenDuration != null
+                ? new CircuitBreaker(builder.circuitFailureRateThreshold, builder.circuitWindowSize, builder.circuitOpenDuration) : null;
+        this.tenantExtractor = builder.tenantExtractor;
+        this.metrics = new MetricsRegistry(requestLimit, timeUnit.toNanos(1));
+        this.callbackExecutor = new CallbackExecutor(builder.callbackThreads, builder.callbackQueueCapacity,
+                builder.callbackSaturationPolicy, metrics.callback);
+        this.requestRecords = createQueue(builder);
+        List<RequestRecord> replayed = new ArrayList<>();
+        if (builder.journalDirectory != null) {
+            try {
+                this.journal = RequestJournal.open(builder.journalDirectory, builder.journalSyncMode, replayed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            this.journal = null;
+        }
+        this.executorService = Executors.newSingleThreadExecutor(threadFactory("crpt-dispatcher"));
+        RateLimiter limiter = builder.rateLimiter != null ? builder.rateLimiter : createRateLimiter(builder);
+        this.rateLimiter = builder.adaptive ? new AdaptiveRateLimiter(limiter, requestLimit, timeUnit.toNanos(1)) : limiter;
+        if (dispatchMode == DispatchMode.BOUNDED_POOL) {
+            this.sendExecutor = Executors.newFixedThreadPool(builder.maxInFlight, threadFactory("crpt-sender"));
+            this.inFlight = new Semaphore(builder.maxInFlight);
+        } else {
+            this.sendExecutor = null;
+            this.inFlight = null;
+        }
+
+        if (builder.metricsAddress != null) {
+            try {
+                this.metricsServer = startMetricsServer(builder.metricsAddress);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            this.metricsServer = null;
+        }
 
         performRequests();
+        if (!replayed.isEmpty()) {
+            log(LogLevel.INFO, 0, " replay " + replayed.size() + " journaled requests ...");
+            for (RequestRecord requestRecord : replayed) {
+                enqueueReplayed(requestRecord);
+            }
+        }
+    }
+
+    /**
+     * Запускает HTTP сервер, отдающий метрики по пути /metrics в текстовом формате Prometheus.
+     * Запросы обрабатывает собственный поток сервера, метрики читаются из атомарных счётчиков
+     * и не останавливают отправку
+     *
+     * @param address адрес сервера
+     * @return запущенный сервер
+     * @throws IOException если адрес недоступен
+     */
+    private HttpServer startMetricsServer(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = metrics.prometheusText(System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Создаёт очередь запросов по настройкам билдера
+     *
+     * @param builder настройки сервиса
+     * @return очередь запросов
+     */
+    private static RequestQueue createQueue(Builder builder) {
+        RequestQueue queue;
+        if (builder.minBackfillShare >= 0) {
+            return new PriorityRequestQueue(builder.capacity > 0 ? builder.capacity : Integer.MAX_VALUE, builder.minBackfillShare);
+        } else if (builder.tenantExtractor != null) {
+            return new FairRequestQueue(builder.capacity > 0 ? builder.capacity : Integer.MAX_VALUE, builder.tenantWeights);
+        } else if (builder.ringBufferCapacity > 0) {
+            queue = new RingBufferRequestQueue(builder.ringBufferCapacity);
+        } else if (builder.capacity > 0) {
+            queue = new LinkedRequestQueue(builder.capacity);
+        } else {
+            return new LinkedRequestQueue(Integer.MAX_VALUE);
+        }
+        if (builder.overflowPolicy == OverflowPolicy.SPILL_TO_DISK) {
+            try {
+                Path directory = builder.spillDirectory != null ? builder.spillDirectory : Path.of(System.getProperty("java.io.tmpdir"));
+                queue = new SpillingRequestQueue(queue, directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Создаёт ограничитель по стратегии билдера: для одного лимита - ограничитель стратегии,
+     * при дополнительных уровнях - составной ограничитель по всем уровням.
+     * Стратегия билдера задаёт форму потока для основного лимита, дополнительные уровни - строгие потолки
+     * скользящего окна: token bucket и GCRA с минимальным всплеском равномерно распределяют разрешения
+     * по окну и не ограничивают их число в окне
+     *
+     * @param builder настройки сервиса
+     * @return ограничитель частоты запросов
+     */
+    private static RateLimiter createRateLimiter(Builder builder) {
+        RateLimitTier primary = new RateLimitTier(builder.requestLimit, builder.timeUnit);
+        if (builder.tiers.isEmpty()) {
+            return builder.limiterStrategy.create(primary.limit(), primary.windowNanos(), builder.burstCapacity);
+        }
+        Map<RateLimitTier, RateLimiter> tiers = new LinkedHashMap<>();
+        tiers.put(primary, builder.limiterStrategy.create(primary.limit(), primary.windowNanos(), builder.burstCapacity));
+        for (RateLimitTier tier : builder.tiers) {
+            tiers.put(tier, LimiterStrategy.SLIDING_WINDOW_COUNTER.create(tier.limit(), tier.windowNanos(), 0));
+        }
+        return new CompositeRateLimiter(tiers);
+    }
+
+    /**
+     * Возвращает количество разрешений, доступных без ожидания, по каждому уровню ограничения
+     *
+     * @return доступные разрешения по уровням в порядке их задания
+     */
+    public Map<RateLimitTier, Integer> remainingPermits() {
+        long now = System.nanoTime();
+        RateLimiter limiter = rateLimiter instanceof AdaptiveRateLimiter adaptive ? adaptive.delegate() : rateLimiter;
+        Map<RateLimitTier, Integer> remaining;
+        if (limiter instanceof CompositeRateLimiter composite) {
+            remaining = composite.remainingPermits(now);
+        } else {
+            remaining = new LinkedHashMap<>();
+            remaining.put(new RateLimitTier(requestLimit, timeUnit), limiter.availablePermits(now));
+        }
+        // Пока адаптивный ограничитель сдерживает выдачу, без ожидания недоступно ни одно разрешение
+        if (rateLimiter instanceof AdaptiveRateLimiter adaptive && adaptive.throttled(now)) {
+            remaining.replaceAll((tier, permits) -> 0);
+        }
+        return remaining;
+    }
+
+    /**
+     * Возвращает состояние автоматического выключателя
+     *
+     * @return состояние выключателя, CLOSED если выключатель не включён
+     */
+    public CircuitState circuitState() {
+        return circuitBreaker != null ? circuitBreaker.state() : CircuitState.CLOSED;
+    }
+
+    /**
+     * Возвращает статистику выполнения callback и завершения future
+     *
+     * @return статистика callback
+     */
+    public CallbackMetrics callbackMetrics() {
+        return callbackExecutor.metrics();
+    }
+
+    /**
+     * Возвращает снимок метрик сервиса. Метрики записываются без блокировок,
+     * снимок собирается при вызове и не останавливает отправку
+     *
+     * @return снимок метрик
+     */
+    public MetricsSnapshot metrics() {
+        return metrics.snapshot(System.nanoTime());
+    }
+
+    /**
+     * Возвращает адрес, на котором отдаются метрики в формате Prometheus
+     *
+     * @return адрес сервера метрик или null, если он не включён
+     */
+    public InetSocketAddress metricsAddress() {
+        return metricsServer != null ? metricsServer.getAddress() : null;
+    }
+
+    /**
+     * Создаёт билдер сервиса
+     *
+     * @return билдер с настройками по умолчанию
+     */
+    public static Builder builder() {
+        return new Builder();
     }
 
     /**
      * Отправляет запросы из очереди, ограничивая их по количеству за единицу времени,
-     * получает ответ, вызывает callback
+     * получает ответ, вызывает callback.
+     * Ошибка при обработке одной записи завершает только эту запись, диспетчер продолжает работу
      */
     private void performRequests() {
-        log(0, " start service ...");
-        executorService.scheduleAtFixedRate(() -> {
-            for (int i = 0; i < requestLimit; i++) {
-                RequestRecord requestRecord = requestRecords.poll();
-                if (requestRecord != null) {
-                    new Thread(() -> {
-                        int number = num.getAndIncrement();
+        log(LogLevel.INFO, 0, " start service ...");
+        executorService.execute(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    RequestRecord requestRecord;
+                    try {
+                        requestRecord = nextRecord();
+                    } catch (RuntimeException e) {
+                        log(LogLevel.ERROR, 0, " failed to take request from queue: " + e + " ...");
+                        // Пауза, чтобы постоянная ошибка очереди не занимала поток диспетчера целиком
+                        TimeUnit.NANOSECONDS.sleep(RETRY_POLL_NANOS);
+                        continue;
+                    }
+                    try {
+                        dispatchRecord(requestRecord);
+                    } catch (RuntimeException e) {
+                        // Запись уже завершена обработчиком, в котором возникла ошибка
+                        log(LogLevel.ERROR, requestRecord.number, " request completion failed: " + e + " ...");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Проверяет срок записи, ожидает выключатель, место среди выполняемых запросов и разрешение ограничителя,
+     * затем передаёт запрос на отправку. До передачи запись, её тело и запись журнала принадлежат диспетчеру:
+     * если возникает ошибка, занятое место и пробный запрос выключателя освобождаются, а запись завершается
+     * через {@link #abandon}. После передачи запись завершает поток отправки
+     *
+     * @param requestRecord запись с запросом
+     * @throws InterruptedException если поток диспетчера прерван
+     */
+    private void dispatchRecord(RequestRecord requestRecord) throws InterruptedException {
+        if (requestRecord.isExpired(System.nanoTime())) {
+            expire(requestRecord);
+            return;
+        }
+        PermitGrantedEvent permitEvent = new PermitGrantedEvent();
+        permitEvent.begin();
+        boolean probe = false;
+        boolean slot = false;
+        boolean permitted;
+        try {
+            // Пока выключатель разомкнут, запрос ожидает в диспетчере, остальные остаются в очереди
+            if (circuitBreaker != null && circuitBreaker.awaitPermission()) {
+                probe = true;
+                log(LogLevel.INFO, 0, " circuit half-open, sending probe ...");
+            }
+            if (inFlight != null) {
+                inFlight.acquire();
+                slot = true;
+            }
+            permitted = acquirePermit(rateLimiter, requestRecord.deadlineNanos);
+        } catch (InterruptedException e) {
+            // Сервис останавливается, запрос вернётся первым в списке не отправленных
+            heldRecord = requestRecord;
+            releaseDispatch(slot, probe);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseDispatch(slot, probe);
+            abandon(requestRecord, e);
+            return;
+        }
+        if (!permitted) {
+            // Срок истекает раньше, чем освободится разрешение: разрешение не расходуется
+            releaseDispatch(slot, probe);
+            expire(requestRecord);
+            return;
+        }
+        try {
+            metrics.onPermitGranted(requestRecord.enqueuedNanos);
+            permitEvent.end();
+            if (permitEvent.shouldCommit()) {
+                permitEvent.number = requestRecord.number;
+                permitEvent.attempt = requestRecord.attempts() + 1;
+                permitEvent.queueWait = System.nanoTime() - requestRecord.enqueuedNanos;
+                permitEvent.commit();
+            }
+            dispatch(requestRecord, probe);
+        } catch (RuntimeException e) {
+            // Запрос не передан на отправку: поток отправки не запущен или пул отправки остановлен
+            releaseDispatch(slot, probe);
+            abandon(requestRecord, e);
+        }
+    }
+
+    /**
+     * Освобождает место среди выполняемых запросов и отменяет пробный запрос выключателя для записи,
+     * которая не передана на отправку
+     *
+     * @param slot  true, если место среди выполняемых запросов занято
+     * @param probe true, если запись - пробный запрос полуоткрытого выключателя
+     */
+    private void releaseDispatch(boolean slot, boolean probe) {
+        if (slot) {
+            inFlight.release();
+        }
+        if (probe) {
+            circuitBreaker.cancelProbe();
+        }
+    }
 
-                        log(number, " create request ...");
-                        HttpRequest request = HttpRequest.newBuilder().uri(URI.create(REQUEST_URL)).POST(HttpRequest.BodyPublishers.ofString(requestRecord.requestBody)).build();
+    /**
+     * Завершает запись, которая из-за ошибки не была отправлена. Вызывается только владельцем записи,
+     * пока тело запроса не передано на отправку и не освобождено.
+     * Запрос передаётся в хранилище недоставленных запросов и отмечается в журнале как обработанный,
+     * как окончательно не отправленный: вызывающий получает ошибку, а повтор при следующем запуске
+     * стал бы отправкой, о которой вызывающий не знает
+     *
+     * @param requestRecord запись с запросом
+     * @param error         ошибка обработки
+     */
+    private void abandon(RequestRecord requestRecord, RuntimeException error) {
+        int number = requestRecord.number;
+        log(LogLevel.ERROR, number, " request dispatch failed: " + error + " ...");
+        deadLetter(number, requestRecord.withAttempt(new DeliveryAttempt(Instant.now(), -1, error.toString())));
+        requestRecord.payload.release();
+        if (requestRecord.future != null) {
+            callbackExecutor.execute(() -> requestRecord.future.completeExceptionally(error), number, false);
+        }
+        acknowledge(requestRecord);
+    }
 
-                        try {
-                            log(number, " send request ...");
-                            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Извлекает следующую запись для отправки. Повторы, время которых наступило, отправляются раньше новых запросов
+     * и проходят через тот же ограничитель частоты
+     *
+     * @return запись с запросом
+     * @throws InterruptedException если поток диспетчера прерван
+     */
+    private RequestRecord nextRecord() throws InterruptedException {
+        while (true) {
+            RetryEntry retry = retries.poll();
+            if (retry != null) {
+                metrics.onRetryTaken();
+                return retry.requestRecord();
+            }
+            RetryEntry next = retries.peek();
+            long waitNanos = next != null ? Math.min(next.getDelay(TimeUnit.NANOSECONDS), RETRY_POLL_NANOS) : RETRY_POLL_NANOS;
+            RequestRecord requestRecord = requestRecords.poll(Math.max(0, waitNanos));
+            if (requestRecord != null) {
+                metrics.onDequeued();
+                return requestRecord;
+            }
+        }
+    }
 
-                            log(number, " receive response ...");
-                            Consumer<HttpResponse<String>> onResponse = requestRecord.onResponse;
+    /**
+     * Ожидает освобождения разрешения ограничителя и занимает его.
+     * Поток просыпается сразу, как только разрешение становится доступным.
+     * Если разрешение освободится только после срока, метод сразу возвращает false, не занимая разрешение
+     *
+     * @param limiter       ограничитель, используемый только текущим потоком
+     * @param deadlineNanos срок отправки или {@link #NO_DEADLINE}
+     * @return true, если разрешение занято
+     * @throws InterruptedException если поток прерван
+     */
+    private static boolean acquirePermit(RateLimiter limiter, long deadlineNanos) throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            long waitNanos = limiter.nanosUntilPermit(now);
+            if (deadlineNanos != NO_DEADLINE && now + Math.max(0, waitNanos) - deadlineNanos >= 0) {
+                return false;
+            }
+            if (waitNanos <= 0) {
+                limiter.acquire(now);
+                return true;
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
 
-                            if (onResponse != null) {
-                                log(number, " invoke callback with response ...");
-                                onResponse.accept(response);
-                            }
-                        } catch (IOException | InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }).start();
+    /**
+     * Завершает запрос, срок отправки которого истёк: future завершается с {@link TimeoutException},
+     * callback не вызывается. Запрос отмечается в журнале как обработанный
+     *
+     * @param requestRecord запись с запросом
+     */
+    private void expire(RequestRecord requestRecord) {
+        log(LogLevel.WARN, requestRecord.number, " request deadline exceeded after " + requestRecord.attempts() + " attempts ...");
+        requestRecord.payload.release();
+        if (requestRecord.future != null) {
+            callbackExecutor.execute(() -> requestRecord.future.completeExceptionally(new TimeoutException("request deadline exceeded")),
+                    requestRecord.number, false);
+        }
+        // Последним, чтобы ошибка журнала не оставила тело запроса и future незавершёнными
+        acknowledge(requestRecord);
+    }
+
+    /**
+     * Передаёт запрос на исполнение в соответствии с режимом отправки
+     *
+     * @param requestRecord запись с запросом
+     * @param probe         true, если запрос - пробный запрос полуоткрытого выключателя
+     */
+    private void dispatch(RequestRecord requestRecord, boolean probe) {
+        if (requestRecord.future != null) {
+            // Асинхронная отправка не занимает поток на время выполнения запроса
+            sendAsync(requestRecord, probe);
+        } else if (dispatchMode == DispatchMode.BOUNDED_POOL) {
+            sendExecutor.execute(() -> {
+                try {
+                    send(requestRecord, probe);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } else {
+            new Thread(() -> send(requestRecord, probe)).start();
+        }
+    }
+
+    /**
+     * Выполняет запрос, получает ответ, вызывает callback.
+     * Если запрос не удалось построить, пробный запрос выключателя отменяется, иначе выключатель ожидал бы его вечно
+     *
+     * @param requestRecord запись с запросом и callback
+     * @param probe         true, если запрос - пробный запрос полуоткрытого выключателя
+     */
+    private void send(RequestRecord requestRecord, boolean probe) {
+        int number = requestRecord.number;
+
+        log(LogLevel.DEBUG, number, " create request ...");
+        HttpRequest request;
+        try {
+            request = buildRequest(requestRecord);
+        } catch (RuntimeException e) {
+            // Место среди выполняемых запросов освобождает задача пула отправки
+            releaseDispatch(false, probe);
+            abandon(requestRecord, e);
+            return;
+        }
+
+        HttpResponse<String> response;
+        log(LogLevel.DEBUG, number, " send request ...");
+        metrics.onSent();
+        long sentNanos = System.nanoTime();
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException | RuntimeException e) {
+            // Результат учитывается выключателем как отказ, в том числе результат пробного запроса
+            onSendFailed(number, requestRecord, sentNanos, e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onSendFailed(number, requestRecord, sentNanos, e);
+            return;
+        }
+
+        log(LogLevel.DEBUG, number, " receive response ...");
+        if (!onResponseReceived(number, requestRecord, sentNanos, response)) {
+            return;
+        }
+        Consumer<HttpResponse<String>> onResponse = requestRecord.onResponse;
+
+        if (onResponse != null) {
+            callbackExecutor.execute(() -> {
+                log(LogLevel.DEBUG, number, " invoke callback with response ...");
+                onResponse.accept(response);
+            }, number, true);
+        }
+    }
+
+    /**
+     * Выполняет запрос асинхронно и завершает future записи ответом или ошибкой
+     *
+     * @param requestRecord запись с запросом и future
+     * @param probe         true, если запрос - пробный запрос полуоткрытого выключателя
+     */
+    private void sendAsync(RequestRecord requestRecord, boolean probe) {
+        int number = requestRecord.number;
+
+        log(LogLevel.DEBUG, number, " create request ...");
+        HttpRequest request;
+        try {
+            request = buildRequest(requestRecord);
+        } catch (RuntimeException e) {
+            // Запрос не отправлен, место среди выполняемых запросов освобождается здесь, а не по завершении отправки
+            releaseDispatch(inFlight != null, probe);
+            abandon(requestRecord, e);
+            return;
+        }
+
+        log(LogLevel.DEBUG, number, " send request ...");
+        metrics.onSent();
+        long sentNanos = System.nanoTime();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            if (inFlight != null) {
+                inFlight.release();
+            }
+            if (error != null) {
+                onSendFailed(number, requestRecord, sentNanos,
+                        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                log(LogLevel.DEBUG, number, " receive response ...");
+                if (onResponseReceived(number, requestRecord, sentNanos, response)) {
+                    callbackExecutor.execute(() -> requestRecord.future.complete(response), number, false);
                 }
             }
-        }, 0L, 1, timeUnit);
+        });
     }
 
     /**
-     * Сериализует запрос в JSON, упаковывает его вместе с callback в record и добавляет его в очередь
+     * Передаёт результат запроса ограничителю и подтверждает в журнале запрос с окончательным ответом.
+     * Ответ с повторяемым статусом отправляется повторно, пока политика повтора это допускает
      *
-     * @param requestBodyDTO DTO запроса
-     * @param onResponse     callback, вызывается по возвращении ответа
+     * @param number        порядковый номер запроса
+     * @param requestRecord запись с запросом
+     * @param sentNanos     время отправки запроса
+     * @param response      ответ
+     * @return true, если ответ окончательный и передаётся вызывающему, false если назначен повтор
      */
-    public void addRequest(RequestBodyDTO requestBodyDTO, Consumer<HttpResponse<String>> onResponse) {
-        String requestBody;
+    private boolean onResponseReceived(int number, RequestRecord requestRecord, long sentNanos, HttpResponse<String> response) {
+        metrics.onResponse(sentNanos, response.statusCode());
+        RequestSentEvent.emit(number, requestRecord, sentNanos, response.statusCode(), null);
+        long retryAfterNanos = retryAfterNanos(response);
+        rateLimiter.onResponse(sentNanos, response.statusCode(), retryAfterNanos);
+        recordOutcome(sentNanos, response.statusCode() < 500);
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            RequestRecord attempted = requestRecord.withAttempt(new DeliveryAttempt(Instant.now(), response.statusCode(), null));
+            if (retryPolicy.isRetriable(response.statusCode())
+                    && scheduleRetry(number, attempted, Math.max(0, retryAfterNanos), "status " + response.statusCode())) {
+                return false;
+            }
+            deadLetter(number, attempted);
+        }
+        // Ответ окончательный: при следующем запуске запрос не повторяется, даже если сервер его отклонил
+        acknowledge(requestRecord);
+        requestRecord.payload.release();
+        return true;
+    }
+
+    /**
+     * Обрабатывает ошибку отправки: назначает повтор, если ошибка повторяемая и попытки не исчерпаны,
+     * иначе завершает future записи ошибкой
+     *
+     * @param number        порядковый номер запроса
+     * @param requestRecord запись с запросом
+     * @param sentNanos     время отправки запроса
+     * @param error         ошибка отправки
+     */
+    private void onSendFailed(int number, RequestRecord requestRecord, long sentNanos, Throwable error) {
+        metrics.onFailure(sentNanos);
+        RequestSentEvent.emit(number, requestRecord, sentNanos, -1, error);
+        recordOutcome(sentNanos, false);
+        RequestRecord attempted = requestRecord.withAttempt(new DeliveryAttempt(Instant.now(), -1, error.toString()));
+        if (retryPolicy.isRetriable(error) && scheduleRetry(number, attempted, 0, error.toString())) {
+            return;
+        }
+        log(LogLevel.ERROR, number, " request failed after " + attempted.attempts() + " attempts: " + error + " ...");
+        deadLetter(number, attempted);
+        acknowledge(requestRecord);
+        requestRecord.payload.release();
+        if (requestRecord.future != null) {
+            callbackExecutor.execute(() -> requestRecord.future.completeExceptionally(error), number, false);
+        }
+    }
+
+    /**
+     * Передаёт автоматическому выключателю результат запроса: ошибки отправки и статусы 5xx считаются отказами
+     *
+     * @param sentNanos время отправки запроса
+     * @param success   true, если сервер ответил без ошибки
+     */
+    private void recordOutcome(long sentNanos, boolean success) {
+        if (circuitBreaker == null) {
+            return;
+        }
+        CircuitState changed = circuitBreaker.onResult(sentNanos, success);
+        if (changed == CircuitState.OPEN) {
+            log(LogLevel.WARN, 0, " circuit open for " + circuitBreaker.openDuration().toMillis() + " ms ...");
+        } else if (changed == CircuitState.CLOSED) {
+            log(LogLevel.INFO, 0, " circuit closed ...");
+        }
+    }
+
+    /**
+     * Ставит запрос в очередь повторов с задержкой по политике повтора, но не раньше минимальной задержки
+     *
+     * @param number        порядковый номер запроса
+     * @param requestRecord запись с запросом, включая историю последней попытки
+     * @param minDelayNanos минимальная задержка, например из заголовка Retry-After
+     * @param reason        причина повтора для лога
+     * @return true, если повтор назначен, false если попытки исчерпаны или повтор не успевает до срока отправки
+     */
+    private boolean scheduleRetry(int number, RequestRecord requestRecord, long minDelayNanos, String reason) {
+        int attempts = requestRecord.attempts();
+        if (attempts >= retryPolicy.maxAttempts()) {
+            return false;
+        }
+        long delayNanos = Math.max(retryPolicy.backoffNanos(attempts), minDelayNanos);
+        if (requestRecord.isExpired(System.nanoTime() + delayNanos)) {
+            return false;
+        }
+        log(LogLevel.WARN, number, " " + reason + ", retry " + attempts + " in " + TimeUnit.NANOSECONDS.toMillis(delayNanos) + " ms ...");
+        long notBeforeNanos = System.nanoTime() + delayNanos;
+        retries.add(new RetryEntry(requestRecord.withEnqueuedNanos(notBeforeNanos), notBeforeNanos));
+        metrics.onRetryScheduled();
+        return true;
+    }
+
+    /**
+     * Передаёт запрос, отправка которого окончательно не удалась, в хранилище недоставленных запросов.
+     * В журнале запрос отмечается вызывающим, как и любой окончательный результат
+     *
+     * @param number        порядковый номер запроса
+     * @param requestRecord запись с запросом и историей попыток
+     */
+    private void deadLetter(int number, RequestRecord requestRecord) {
+        if (deadLetterSink == null) {
+            return;
+        }
+        DeliveryAttempt last = requestRecord.history.get(requestRecord.history.size() - 1);
         try {
-            requestBody = writer.writeValueAsString(requestBodyDTO);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+            deadLetterSink.accept(new DeadLetter(new String(requestRecord.payload.toByteArray(), StandardCharsets.UTF_8),
+                    requestRecord.history, last.statusCode(), last.error()));
+        } catch (RuntimeException e) {
+            log(LogLevel.ERROR, number, " dead letter not stored: " + e + " ...");
+            return;
         }
-        RequestRecord requestRecord = new RequestRecord(requestBody, onResponse);
-        requestRecords.add(requestRecord);
+        log(LogLevel.WARN, number, " moved to dead letters ...");
     }
 
     /**
-     * Метод логирования
+     * Повторно ставит в очередь все запросы из хранилища недоставленных запросов.
+     * Запросы добавляются в фоновом потоке не чаще заданной доли лимита запросов и затем,
+     * как и остальные запросы, проходят через общий ограничитель частоты.
+     * Если сервис останавливается раньше, оставшиеся запросы возвращаются в хранилище
      *
-     * @param number  порядковый номер запроса
-     * @param message сообщение
+     * @param fraction доля лимита запросов, от 0 (не включая) до 1
+     * @return future, завершается количеством повторно поставленных в очередь запросов
+     * @throws IllegalStateException если хранилище недоставленных запросов не задано
      */
-    private void log(int number, String message) {
-        if (number == 0) {
-            System.out.println(LocalDateTime.now().format(dateTimeFormatter) + " " + message);
-        } else {
-            System.out.println(LocalDateTime.now().format(dateTimeFormatter) + " " + number + message);
+    public CompletableFuture<Integer> redrive(double fraction) {
+        if (deadLetterSink == null) {
+            throw new IllegalStateException("dead letter sink is not configured");
         }
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("fraction must be in (0, 1]: " + fraction);
+        }
+        int limit = Math.max(1, (int) (requestLimit * fraction));
+        RateLimiter pacer = LimiterStrategy.GCRA.create(limit, timeUnit.toNanos(1), 1);
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        Thread redriver = redriveThreadFactory.newThread(() -> {
+            AtomicInteger redriven = new AtomicInteger();
+            try {
+                deadLetterSink.drainTo(deadLetter -> {
+                    if (executorService.isShutdown() || Thread.currentThread().isInterrupted()) {
+                        deadLetterSink.accept(deadLetter);
+                        return;
+                    }
+                    try {
+                        acquirePermit(pacer, NO_DEADLINE);
+                        RequestRecord requestRecord = createRecord(null, deadLetter.body().getBytes(StandardCharsets.UTF_8),
+                                null, null, Priority.NORMAL, defaultDeadline());
+                        RequestEnqueuedEvent event = new RequestEnqueuedEvent();
+                        event.begin();
+                        requestRecords.put(requestRecord);
+                        metrics.onEnqueued();
+                        event.emit(requestRecord);
+                        redriven.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        deadLetterSink.accept(deadLetter);
+                    } catch (RejectedExecutionException e) {
+                        // Запись в журнал прервана остановкой сервиса, запрос не поставлен в очередь
+                        deadLetterSink.accept(deadLetter);
+                    }
+                });
+                log(LogLevel.INFO, 0, " redrive " + redriven.get() + " dead letters ...");
+                result.complete(redriven.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            } finally {
+                redrivers.remove(Thread.currentThread());
+            }
+        });
+        redriver.setDaemon(true);
+        // Поток регистрируется до запуска: shutdownService остановит его до выгрузки очереди
+        redrivers.add(redriver);
+        redriver.start();
+        return result;
     }
 
     /**
-     * Завершает работу сервиса отправки запросов, возвращает не отправленные запросы
+     * Отмечает запись в журнале как обработанную, после чего она не будет повторена при следующем запуске
      *
-     * @return список не отправленных запросов
+     * @param requestRecord запись с запросом
      */
-    public List<RequestBodyDTO> shutdownService() {
-        log(0, " stop service ...");
-        executorService.shutdownNow();
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.registerModule(new JavaTimeModule());
-        return requestRecords.stream().map(requestRecord -> {
+    private void acknowledge(RequestRecord requestRecord) {
+        if (requestRecord.journalEntry != null) {
+            journal.acknowledge(requestRecord.journalEntry);
+        }
+    }
+
+    /**
+     * Разбирает заголовок Retry-After: количество секунд или дату HTTP
+     *
+     * @param response ответ
+     * @return задержка в наносекундах или -1, если заголовка нет или он не разобран
+     */
+    private static long retryAfterNanos(HttpResponse<?> response) {
+        String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
             try {
-                return mapper.readValue(requestRecord.requestBody, RequestBodyDTO.class);
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toNanos());
+            } catch (DateTimeParseException ignored) {
+                return -1;
             }
-        }).toList();
+        }
+    }
 
+    /**
+     * Создаёт HTTP запрос по записи из очереди
+     *
+     * @param requestRecord запись с запросом
+     * @return HTTP запрос
+     */
+    private HttpRequest buildRequest(RequestRecord requestRecord) {
+        Duration timeout = requestTimeout;
+        if (requestRecord.deadlineNanos != NO_DEADLINE) {
+            // Ответ не ожидается дольше срока отправки запроса
+            long remainingNanos = requestRecord.deadlineNanos - System.nanoTime();
+            timeout = Duration.ofNanos(Math.max(1, Math.min(remainingNanos, timeout.toNanos())));
+        }
+        return HttpRequest.newBuilder().uri(requestUri).timeout(timeout).POST(requestRecord.payload.bodyPublisher()).build();
     }
 
     /**
-     * Контенейнер для запроса и callback
+     * Сериализует запрос в JSON, упаковывает его вместе с callback в record и добавляет его в очередь.
+     * Callback получает только ответ сервера: если срок отправки истёк, запрос вытеснен из очереди
+     * или окончательно не отправлен из-за ошибки, callback не вызывается, такие запросы видны только в логе
+     * и в хранилище недоставленных запросов. Чтобы получать и эти исходы, используйте {@link #addRequestAsync}
      *
-     * @param requestBody запрос в виде JSON строки
-     * @param onResponse  callback, вызывается по возвращении ответа
+     * @param requestBodyDTO DTO запроса
+     * @param onResponse     callback, вызывается по возвращении ответа
      */
-    record RequestRecord(String requestBody, Consumer<HttpResponse<String>> onResponse) {
+    public void addRequest(RequestBodyDTO requestBodyDTO, Consumer<HttpResponse<String>> onResponse) {
+        addRequest(requestBodyDTO, onResponse, Priority.NORMAL, null);
+    }
+
+    /**
+     * Добавляет запрос с приоритетом. Приоритет учитывается при включённом {@link Builder#priorityScheduling}
+     *
+     * @param requestBodyDTO DTO запроса
+     * @param onResponse     callback, вызывается по возвращении ответа
+     * @param priority       приоритет запроса
+     */
+    public void addRequest(RequestBodyDTO requestBodyDTO, Consumer<HttpResponse<String>> onResponse, @NotNull Priority priority) {
+        addRequest(requestBodyDTO, onResponse, priority, null);
+    }
+
+    /**
+     * Добавляет запрос с приоритетом и сроком отправки. Внутри класса приоритета запросы отправляются
+     * в порядке сроков, запрос, не отправленный до срока, завершается без отправки, как при {@link Builder#requestDeadline}.
+     * Callback такого запроса не вызывается, см. {@link #addRequest(RequestBodyDTO, Consumer)}
+     *
+     * @param requestBodyDTO DTO запроса
+     * @param onResponse     callback, вызывается по возвращении ответа
+     * @param priority       приоритет запроса
+     * @param deadline       срок отправки, null - срок по настройке requestDeadline
+     */
+    public void addRequest(RequestBodyDTO requestBodyDTO, Consumer<HttpResponse<String>> onResponse,
+                           @NotNull Priority priority, Instant deadline) {
+        RequestRecord requestRecord = createRecord(requestBodyDTO, serialize(requestBodyDTO), onResponse, null,
+                Objects.requireNonNull(priority, "priority"), deadlineNanos(deadline));
+        try {
+            enqueue(requestRecord);
+        } catch (RuntimeException e) {
+            acknowledge(requestRecord);
+            requestRecord.payload.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Добавляет запрос в очередь, только если в ней есть место. Не ожидает и не вытесняет другие запросы,
+     * при политике SPILL_TO_DISK запрос принимается с записью на диск
+     *
+     * @param requestBodyDTO DTO запроса
+     * @param onResponse     callback, вызывается по возвращении ответа
+     * @return true, если запрос добавлен в очередь
+     */
+    public boolean tryAddRequest(RequestBodyDTO requestBodyDTO, Consumer<HttpResponse<String>> onResponse) {
+        RequestRecord requestRecord = createRecord(requestBodyDTO, serialize(requestBodyDTO), onResponse, null,
+                Priority.NORMAL, defaultDeadline());
+        RequestEnqueuedEvent event = new RequestEnqueuedEvent();
+        event.begin();
+        if (requestRecords.offer(requestRecord)) {
+            metrics.onEnqueued();
+            event.emit(requestRecord);
+            return true;
+        }
+        acknowledge(requestRecord);
+        requestRecord.payload.release();
+        return false;
+    }
+
+    /**
+     * Сериализует запрос в JSON и добавляет его в очередь для асинхронной отправки.
+     * Отправка выполняется через {@link HttpClient#sendAsync}, поток на время запроса не занимается
+     *
+     * @param requestBodyDTO DTO запроса
+     * @return future, завершается ответом или ошибкой отправки;
+     * отменяется, если запрос остался в очереди при остановке сервиса
+     */
+    public CompletableFuture<HttpResponse<String>> addRequestAsync(RequestBodyDTO requestBodyDTO) {
+        return addRequestAsync(requestBodyDTO, Priority.NORMAL, null);
+    }
+
+    /**
+     * Добавляет запрос для асинхронной отправки с приоритетом и сроком отправки,
+     * см. {@link #addRequest(RequestBodyDTO, Consumer, Priority, Instant)}
+     *
+     * @param requestBodyDTO DTO запроса
+     * @param priority       приоритет запроса
+     * @param deadline       срок отправки, null - срок по настройке requestDeadline
+     * @return future, завершается ответом или ошибкой отправки, {@link TimeoutException} при истечении срока
+     */
+    public CompletableFuture<HttpResponse<String>> addRequestAsync(RequestBodyDTO requestBodyDTO, @NotNull Priority priority,
+                                                                   Instant deadline) {
+        Objects.requireNonNull(priority, "priority");
+        CompletableFuture<HttpResponse<String>> future = new CompletableFuture<>();
+        byte[] requestBody;
+        try {
+            requestBody = serialize(requestBodyDTO);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        RequestRecord requestRecord;
+        try {
+            requestRecord = createRecord(requestBodyDTO, requestBody, null, future, priority, deadlineNanos(deadline));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        try {
+            enqueue(requestRecord);
+        } catch (RuntimeException e) {
+            acknowledge(requestRecord);
+            requestRecord.payload.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Создаёт запись для очереди. При включённом журнале тело запроса записывается в журнал,
+     * метод возвращает управление после того, как запись сохранена на диск.
+     * Участник и тело запроса готовятся до записи в журнал: если запрос отклоняется, в журнале не остаётся
+     * записи, которая повторилась бы при следующем запуске.
+     * При хранении тел вне кучи запись не удерживает DTO, он восстанавливается из тела запроса при необходимости
+     *
+     * @param requestBodyDTO DTO запроса
+     * @param requestBody    JSON запроса в UTF-8
+     * @param onResponse     callback, вызывается по возвращении ответа
+     * @param future         future асинхронного запроса
+     * @param priority       приоритет запроса
+     * @param deadlineNanos  срок отправки или {@link #NO_DEADLINE}
+     * @return запись с запросом
+     */
+    private RequestRecord createRecord(RequestBodyDTO requestBodyDTO, byte[] requestBody,
+                                       Consumer<HttpResponse<String>> onResponse,
+                                       CompletableFuture<HttpResponse<String>> future, Priority priority, long deadlineNanos) {
+        String tenant = tenantOf(requestBodyDTO, requestBody);
+        Payload payload = payloadArena != null ? payloadArena.allocate(requestBody) : new HeapPayload(requestBody);
+        JournalEntry journalEntry = null;
+        if (journal != null) {
+            try {
+                journalEntry = journal.append(requestBody);
+            } catch (InterruptedException e) {
+                payload.release();
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            } catch (RuntimeException e) {
+                payload.release();
+                throw e;
+            }
+        }
+        try {
+            return new RequestRecord(payloadArena != null ? null : requestBodyDTO, payload, onResponse, future, journalEntry,
+                    priority, tenant, deadlineNanos, List.of(), System.nanoTime(), num.getAndIncrement());
+        } catch (RuntimeException e) {
+            if (journalEntry != null) {
+                journal.acknowledge(journalEntry);
+            }
+            payload.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Определяет участника запроса для справедливой очереди
+     *
+     * @param requestBodyDTO DTO запроса, null если известен только JSON
+     * @param requestBody    JSON запроса в UTF-8
+     * @return участник или null, если справедливая очередь не включена
+     */
+    private String tenantOf(RequestBodyDTO requestBodyDTO, byte[] requestBody) {
+        if (tenantExtractor == null) {
+            return null;
+        }
+        return tenantExtractor.apply(requestBodyDTO != null ? requestBodyDTO : UnsentRequests.parse(requestBody));
+    }
+
+    /**
+     * @return срок отправки запроса, добавляемого сейчас, по настройке requestDeadline
+     */
+    private long defaultDeadline() {
+        return requestDeadline != null ? System.nanoTime() + requestDeadline.toNanos() : NO_DEADLINE;
+    }
+
+    /**
+     * Переводит срок отправки в шкалу System.nanoTime(), из двух сроков - заданного и по настройке - выбирается ранний
+     *
+     * @param deadline срок отправки или null
+     * @return срок отправки или {@link #NO_DEADLINE}
+     */
+    private long deadlineNanos(Instant deadline) {
+        long deadlineNanos = defaultDeadline();
+        if (deadline == null) {
+            return deadlineNanos;
+        }
+        long now = System.nanoTime();
+        long remainingNanos;
+        try {
+            remainingNanos = Duration.between(Instant.now(), deadline).toNanos();
+        } catch (ArithmeticException e) {
+            remainingNanos = deadline.isAfter(Instant.now()) ? Long.MAX_VALUE / 2 : Long.MIN_VALUE / 2;
+        }
+        long requested = now + Math.max(Math.min(remainingNanos, Long.MAX_VALUE / 2), Long.MIN_VALUE / 2);
+        return deadlineNanos == NO_DEADLINE || requested - deadlineNanos < 0 ? requested : deadlineNanos;
+    }
+
+    /**
+     * Ставит в очередь запрос, восстановленный из журнала, ожидая места в очереди независимо от политики
+     *
+     * @param requestRecord запись с запросом
+     */
+    private void enqueueReplayed(RequestRecord requestRecord) {
+        requestRecord = requestRecord.withNumber(num.getAndIncrement());
+        if (tenantExtractor != null) {
+            requestRecord = requestRecord.withTenant(tenantOf(null, requestRecord.payload.toByteArray()));
+        }
+        if (payloadArena != null) {
+            requestRecord = requestRecord.withPayload(payloadArena.allocate(requestRecord.payload.toByteArray()));
+        }
+        RequestEnqueuedEvent event = new RequestEnqueuedEvent();
+        event.begin();
+        try {
+            requestRecords.put(requestRecord);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        metrics.onEnqueued();
+        event.emit(requestRecord);
+    }
+
+    /**
+     * Добавляет запись в очередь, при заполненной очереди действует по политике {@link OverflowPolicy}
+     *
+     * @param requestRecord запись с запросом
+     * @throws RejectedExecutionException если запрос не принят в очередь
+     */
+    private void enqueue(RequestRecord requestRecord) {
+        RequestEnqueuedEvent event = new RequestEnqueuedEvent();
+        event.begin();
+        try {
+            switch (overflowPolicy) {
+                case BLOCK -> requestRecords.put(requestRecord);
+                case BLOCK_WITH_TIMEOUT -> {
+                    if (!requestRecords.offer(requestRecord, offerTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                        throw new RejectedExecutionException("request queue is full after waiting " + offerTimeout);
+                    }
+                }
+                case REJECT -> {
+                    if (!requestRecords.offer(requestRecord)) {
+                        throw new RejectedExecutionException("request queue is full");
+                    }
+                }
+                case DROP_OLDEST -> {
+                    while (!requestRecords.offer(requestRecord)) {
+                        RequestRecord dropped = requestRecords.pollOldest();
+                        if (dropped != null) {
+                            metrics.onDequeued();
+                            log(LogLevel.WARN, 0, " request queue is full, oldest request dropped ...");
+                            acknowledge(dropped);
+                            dropped.payload.release();
+                            if (dropped.future != null) {
+                                // Продолжения future выполняет исполнитель callback, а не поток производителя
+                                callbackExecutor.execute(() -> dropped.future.completeExceptionally(
+                                        new RejectedExecutionException("dropped from full request queue")), dropped.number, false);
+                            }
+                        }
+                    }
+                }
+                case SPILL_TO_DISK -> requestRecords.put(requestRecord);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        metrics.onEnqueued();
+        event.emit(requestRecord);
+    }
+
+    /**
+     * Сериализует запрос в JSON сразу в байты UTF-8
+     *
+     * @param requestBodyDTO DTO запроса
+     * @return JSON запроса в UTF-8
+     */
+    private byte[] serialize(RequestBodyDTO requestBodyDTO) {
+        try {
+            return writer.writeValueAsBytes(requestBodyDTO);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Метод логирования. Сообщение передаётся потоку записи лога и никогда не блокирует вызывающий поток
+     *
+     * @param level   уровень сообщения
+     * @param number  порядковый номер запроса, 0 для сообщений сервиса
+     * @param message сообщение
+     */
+    private void log(LogLevel level, int number, String message) {
+        logger.log(level, number, message);
+    }
+
+    /**
+     * Завершает работу сервиса отправки запросов, возвращает не отправленные запросы.
+     * При включённом журнале не отправленные запросы остаются в журнале
+     * и снова ставятся в очередь при следующем запуске сервиса с тем же каталогом журнала
+     *
+     * @return список не отправленных запросов
+     */
+    public List<RequestBodyDTO> shutdownService() {
+        log(LogLevel.INFO, 0, " stop service ...");
+        executorService.shutdownNow();
+        try {
+            // Диспетчер должен вернуть в очередь запрос, для которого ожидал разрешение
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+            // Повторная постановка возвращает оставшиеся запросы в хранилище; запросы, уже поставленные в очередь,
+            // попадают в список не отправленных, так как очередь выгружается после остановки потоков
+            for (Thread redriver : redrivers) {
+                redriver.interrupt();
+            }
+            for (Thread redriver : redrivers) {
+                redriver.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sendExecutor != null) {
+            // Уже запущенные запросы дорабатывают, новые не принимаются
+            sendExecutor.shutdown();
+        }
+        // Callback из очереди выполняются, callback запросов, завершившихся позже, выполняются в потоке отправки
+        callbackExecutor.shutdown();
+        List<RequestRecord> unsent = new ArrayList<>();
+        RequestRecord held = heldRecord;
+        if (held != null) {
+            unsent.add(held);
+        }
+        // drainTo у DelayQueue возвращает только повторы с наступившим временем, поэтому очередь разбирается по одному
+        for (RetryEntry retry = retries.peek(); retry != null; retry = retries.peek()) {
+            if (retries.remove(retry)) {
+                metrics.onRetryTaken();
+                unsent.add(retry.requestRecord());
+            }
+        }
+        int retained = unsent.size();
+        requestRecords.drainTo(unsent);
+        for (int i = retained; i < unsent.size(); i++) {
+            metrics.onDequeued();
+        }
+        for (RequestRecord requestRecord : unsent) {
+            if (requestRecord.future != null) {
+                requestRecord.future.cancel(false);
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+        logger.close();
+        return new UnsentRequests(unsent);
+    }
+
+    /**
+     * Создаёт фабрику именованных потоков
+     *
+     * @param name префикс имени потока
+     * @return фабрика потоков
+     */
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger(1);
+        return runnable -> new Thread(runnable, name + "-" + counter.getAndIncrement());
+    }
+
+    /**
+     * Режимы исполнения отправки запросов
+     */
+    public enum DispatchMode {
+        // Новый поток на каждый запрос
+        THREAD_PER_REQUEST,
+        // Пул потоков фиксированного размера с ограничением одновременно выполняемых запросов
+        BOUNDED_POOL
+    }
+
+    /**
+     * Режим сброса журнала запросов на диск
+     */
+    public enum JournalSyncMode {
+        // Каждая запись сбрасывается на диск отдельно до возврата из addRequest
+        FSYNC_PER_RECORD,
+        // Записи, накопившиеся за время предыдущего сброса, сбрасываются одной операцией,
+        // addRequest ожидает сброса своей записи
+        GROUP_COMMIT
+    }
+
+    /**
+     * Формат JSON тела запроса
+     */
+    public enum SerializationMode {
+        // JSON с отступами и переводами строк
+        PRETTY,
+        // JSON без пробельных символов
+        COMPACT
+    }
+
+    /**
+     * Уровни сообщений лога
+     */
+    public enum LogLevel {
+        // Этапы каждого запроса
+        DEBUG,
+        // Запуск и остановка сервиса, изменения состояния
+        INFO,
+        // Повторы, вытеснение и истечение срока запросов
+        WARN,
+        // Окончательно не отправленные запросы
+        ERROR,
+        // Лог выключен
+        OFF
+    }
+
+    /**
+     * Асинхронный лог: сообщения кладутся в кольцевой буфер {@link MpscRingBuffer} без ожидания,
+     * один поток записи выводит их пачками в System.out. При заполненном буфере сообщения отбрасываются,
+     * их количество выводится следующей строкой лога. Время сообщения форматируется потоком записи,
+     * строка времени пересчитывается раз в секунду
+     */
+    static final class AsyncLogger {
+        private static final int BUFFER_CAPACITY = 8192;
+        private static final int MAX_BATCH = 1024;
+        private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final MpscRingBuffer<LogEvent> buffer = new MpscRingBuffer<>(BUFFER_CAPACITY);
+        private final LogLevel level;
+        private final int sampleEvery;
+        private final LongAdder dropped = new LongAdder();
+        private final ZoneId zone = ZoneId.systemDefault();
+        private final StringBuilder line = new StringBuilder(256);
+        private final Thread writer;
+        private volatile boolean closed;
+        private long cachedSecond = Long.MIN_VALUE;
+        private String cachedTimestamp;
+
+        AsyncLogger(LogLevel level, double sampling) {
+            this.level = level;
+            this.sampleEvery = (int) Math.max(1, Math.round(1 / sampling));
+            if (level == LogLevel.OFF) {
+                this.writer = null;
+                return;
+            }
+            this.writer = new Thread(this::writeLoop, "crpt-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Передаёт сообщение потоку записи
+         *
+         * @param level   уровень сообщения
+         * @param number  порядковый номер запроса, 0 для сообщений сервиса
+         * @param message сообщение
+         */
+        void log(LogLevel level, int number, String message) {
+            if (level.compareTo(this.level) < 0) {
+                return;
+            }
+            if (number != 0 && sampleEvery > 1 && level.compareTo(LogLevel.WARN) < 0 && number % sampleEvery != 0) {
+                return;
+            }
+            LogEvent event = new LogEvent(System.currentTimeMillis(), level, number, message);
+            if (closed) {
+                // Сообщения после остановки сервиса, например от запросов, завершившихся позже, выводятся сразу
+                synchronized (this) {
+                    line.setLength(0);
+                    System.out.print(append(event).toString());
+                }
+            } else if (!buffer.offer(event)) {
+                dropped.increment();
+            }
+        }
+
+        /**
+         * Выводит сообщения, пока лог не закрыт, затем выводит всё, что осталось в буфере.
+         * Буфер читает только этот поток: у кольцевого буфера может быть один потребитель
+         */
+        private void writeLoop() {
+            try {
+                while (!closed) {
+                    LogEvent event = buffer.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                    if (event != null) {
+                        writeBatch(event);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (LogEvent event = buffer.poll(); event != null; event = buffer.poll()) {
+                    writeBatch(event);
+                }
+            }
+        }
+
+        /**
+         * Выводит сообщение и все сообщения, накопившиеся в буфере, но не больше MAX_BATCH, одной записью
+         */
+        private synchronized void writeBatch(LogEvent first) {
+            line.setLength(0);
+            LogEvent event = first;
+            for (int i = 0; event != null && i < MAX_BATCH; i++) {
+                append(event);
+                event = i + 1 < MAX_BATCH ? buffer.poll() : null;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                append(new LogEvent(System.currentTimeMillis(), LogLevel.WARN, 0, " " + lost + " log messages dropped ..."));
+            }
+            System.out.print(line);
+            System.out.flush();
+        }
+
+        private StringBuilder append(LogEvent event) {
+            long second = event.epochMillis / 1000;
+            if (second != cachedSecond) {
+                cachedSecond = second;
+                cachedTimestamp = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone).format(dateTimeFormatter);
+            }
+            // Уровень только отбирает сообщения и в строку не выводится: строка имеет вид "время номер сообщение"
+            line.append(cachedTimestamp).append(' ');
+            if (event.number != 0) {
+                line.append(event.number);
+            }
+            return line.append(event.message).append(System.lineSeparator());
+        }
+
+        /**
+         * Останавливает поток записи и ожидает, пока он выведет оставшиеся сообщения.
+         * Если поток записи не успевает за секунду, он завершает вывод сам, буфер из этого потока не читается
+         */
+        void close() {
+            if (writer == null || closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private record LogEvent(long epochMillis, LogLevel level, int number, String message) {
+        }
+    }
+
+    /**
+     * Снимок метрик сервиса
+     *
+     * @param queueDepth               запросов в очереди
+     * @param pendingRetries           запросов, ожидающих повтора
+     * @param enqueued                 всего запросов, принятых в очередь
+     * @param enqueueRate              запросов в секунду, принятых в очередь с предыдущего снимка, но не меньше чем за секунду
+     * @param permitsGranted           всего выданных разрешений
+     * @param permitsWasted            всего неиспользованных разрешений в завершённых окнах
+     * @param permitsGrantedLastWindow разрешений, выданных в последнем завершённом окне
+     * @param permitsWastedLastWindow  разрешений, не использованных в последнем завершённом окне
+     * @param inFlight                 запросов, ожидающих ответа
+     * @param responses                количество ответов по кодам статуса
+     * @param failures                 запросов, завершившихся ошибкой без ответа
+     * @param queueWait                время от постановки в очередь до получения разрешения
+     * @param roundTrip                время от отправки запроса до получения ответа или ошибки
+     * @param callback                 время выполнения callback и завершения future
+     */
+    public record MetricsSnapshot(int queueDepth, int pendingRetries, long enqueued, double enqueueRate,
+                                  long permitsGranted, long permitsWasted, long permitsGrantedLastWindow,
+                                  long permitsWastedLastWindow, int inFlight, Map<Integer, Long> responses,
+                                  long failures, HistogramSnapshot queueWait,
+                                  HistogramSnapshot roundTrip, HistogramSnapshot callback) {
+    }
+
+    /**
+     * Снимок гистограммы времени. Процентили вычисляются по границам интервалов гистограммы,
+     * погрешность не больше 1/16 значения
+     *
+     * @param count количество измерений
+     * @param mean  среднее время
+     * @param p50   медиана
+     * @param p90   90-й процентиль
+     * @param p99   99-й процентиль
+     * @param p999  99.9-й процентиль
+     * @param max   наибольшее время
+     */
+    public record HistogramSnapshot(long count, Duration mean, Duration p50, Duration p90, Duration p99, Duration p999,
+                                    Duration max) {
+    }
+
+    /**
+     * Реестр метрик сервиса. Счётчики записываются через {@link LongAdder}, время - в {@link LatencyHistogram},
+     * окно разрешений изменяется только потоком диспетчера, поэтому запись не использует блокировок.
+     * Окна разрешений имеют длину единицы времени лимита и отсчитываются от создания сервиса,
+     * неиспользованные разрешения считаются относительно заданного лимита
+     */
+    static final class MetricsRegistry {
+        private static final long MIN_RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private static final int MAX_STATUS = 600;
+        // Границы интервалов гистограмм Prometheus в секундах
+        private static final double[] PROMETHEUS_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+        final LatencyHistogram callback = new LatencyHistogram();
+        private final LongAdder enqueued = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder dequeued = new LongAdder();
+        private final LongAdder retriesScheduled = new LongAdder();
+        private final LongAdder retriesTaken = new LongAdder();
+        private final AtomicLongArray responses = new AtomicLongArray(MAX_STATUS);
+        private final LongAdder failures = new LongAdder();
+        private final int windowLimit;
+        private final long windowNanos;
+        private final long startNanos = System.nanoTime();
+        private final AtomicReference<RateSample> enqueueSample = new AtomicReference<>(new RateSample(startNanos, 0, 0));
+        // Состояние окна разрешений, записывается только потоком диспетчера
+        private volatile long window;
+        private volatile long windowGranted;
+        private volatile long lastWindowGranted;
+        private volatile long closedWindowsWasted;
+        private volatile long permitsGranted;
+
+        MetricsRegistry(int windowLimit, long windowNanos) {
+            this.windowLimit = windowLimit;
+            this.windowNanos = windowNanos;
+        }
+
+        void onEnqueued() {
+            enqueued.increment();
+        }
+
+        void onDequeued() {
+            dequeued.increment();
+        }
+
+        void onRetryScheduled() {
+            retriesScheduled.increment();
+        }
+
+        void onRetryTaken() {
+            retriesTaken.increment();
+        }
+
+        /**
+         * Учитывает выданное разрешение и время ожидания запроса в очереди. Вызывается только потоком диспетчера
+         *
+         * @param enqueuedNanos время постановки запроса в очередь
+         */
+        void onPermitGranted(long enqueuedNanos) {
+            long now = System.nanoTime();
+            queueWait.record(now - enqueuedNanos);
+            long index = (now - startNanos) / windowNanos;
+            if (index != window) {
+                closedWindowsWasted = closedWindowsWasted + wasted(window, windowGranted, index);
+                lastWindowGranted = index == window + 1 ? windowGranted : 0;
+                windowGranted = 0;
+                window = index;
+            }
+            windowGranted = windowGranted + 1;
+            permitsGranted = permitsGranted + 1;
+        }
+
+        void onSent() {
+            inFlight.increment();
+        }
+
+        /**
+         * @param sentNanos  время отправки запроса, на который получен ответ
+         * @param statusCode код статуса ответа
+         */
+        void onResponse(long sentNanos, int statusCode) {
+            roundTrip.record(System.nanoTime() - sentNanos);
+            inFlight.decrement();
+            if (statusCode >= 0 && statusCode < MAX_STATUS) {
+                responses.incrementAndGet(statusCode);
+            }
+        }
+
+        /**
+         * @param sentNanos время отправки запроса, завершившегося ошибкой
+         */
+        void onFailure(long sentNanos) {
+            roundTrip.record(System.nanoTime() - sentNanos);
+            inFlight.decrement();
+            failures.increment();
+        }
+
+        /**
+         * @return неиспользованные разрешения окна {@code window} и пустых окон между ним и окном {@code index}
+         */
+        private long wasted(long window, long granted, long index) {
+            return Math.max(0, windowLimit - granted) + windowLimit * Math.max(0, index - window - 1);
+        }
+
+        MetricsSnapshot snapshot(long nowNanos) {
+            long[] windows = windows(nowNanos);
+            long total = enqueued.sum();
+            Map<Integer, Long> byStatus = new TreeMap<>();
+            for (int status = 0; status < MAX_STATUS; status++) {
+                long count = responses.get(status);
+                if (count > 0) {
+                    byStatus.put(status, count);
+                }
+            }
+            return new MetricsSnapshot(queueDepth(total), pendingRetries(), total, enqueueRate(nowNanos, total), permitsGranted,
+                    windows[0], windows[1], Math.max(0, windowLimit - windows[1]), (int) inFlight.sum(),
+                    Collections.unmodifiableMap(byStatus), failures.sum(),
+                    queueWait.snapshot(), roundTrip.snapshot(), callback.snapshot());
+        }
+
+        /**
+         * Формирует метрики в текстовом формате Prometheus
+         *
+         * @param nowNanos текущее время
+         * @return текст метрик
+         */
+        String prometheusText(long nowNanos) {
+            long[] windows = windows(nowNanos);
+            long total = enqueued.sum();
+            StringBuilder text = new StringBuilder(8192);
+            metric(text, "crpt_queue_depth", "gauge", "Requests waiting in the queue", queueDepth(total));
+            metric(text, "crpt_retries_pending", "gauge", "Requests waiting for a retry", pendingRetries());
+            metric(text, "crpt_requests_enqueued_total", "counter", "Requests accepted into the queue", total);
+            metric(text, "crpt_requests_in_flight", "gauge", "Requests waiting for a response", inFlight.sum());
+            metric(text, "crpt_permits_granted_total", "counter", "Rate limiter permits granted", permitsGranted);
+            metric(text, "crpt_permits_wasted_total", "counter", "Rate limiter permits left unused in closed windows", windows[0]);
+            metric(text, "crpt_limiter_utilization", "gauge", "Share of the request limit used in the last closed window",
+                    (double) windows[1] / windowLimit);
+            text.append("# HELP crpt_responses_total Responses by status code\n# TYPE crpt_responses_total counter\n");
+            for (int status = 0; status < MAX_STATUS; status++) {
+                long count = responses.get(status);
+                if (count > 0) {
+                    text.append("crpt_responses_total{code=\"").append(status).append("\"} ").append(count).append('\n');
+                }
+            }
+            metric(text, "crpt_request_failures_total", "counter", "Requests failed without a response", failures.sum());
+            queueWait.appendPrometheus(text, "crpt_queue_wait_seconds", "Time from enqueue to permit grant", PROMETHEUS_BUCKETS);
+            roundTrip.appendPrometheus(text, "crpt_round_trip_seconds", "HTTP round trip time", PROMETHEUS_BUCKETS);
+            callback.appendPrometheus(text, "crpt_callback_seconds", "Callback and future completion time", PROMETHEUS_BUCKETS);
+            return text.toString();
+        }
+
+        private static void metric(StringBuilder text, String name, String type, String help, double value) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                    .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                    .append(name).append(' ');
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                text.append((long) value);
+            } else {
+                text.append(value);
+            }
+            text.append('\n');
+        }
+
+        private int queueDepth(long enqueuedTotal) {
+            return (int) Math.max(0, enqueuedTotal - dequeued.sum());
+        }
+
+        private int pendingRetries() {
+            return (int) Math.max(0, retriesScheduled.sum() - retriesTaken.sum());
+        }
+
+        /**
+         * @return неиспользованные разрешения завершённых окон и разрешения, выданные в последнем завершённом окне
+         */
+        private long[] windows(long nowNanos) {
+            long index = (nowNanos - startNanos) / windowNanos;
+            long current = window;
+            long granted = windowGranted;
+            long lastGranted = lastWindowGranted;
+            long wasted = closedWindowsWasted;
+            if (index > current) {
+                // Диспетчер ещё не выдавал разрешений в текущем окне
+                wasted += wasted(current, granted, index);
+                lastGranted = index == current + 1 ? granted : 0;
+            }
+            return new long[]{wasted, lastGranted};
+        }
+
+        /**
+         * Вычисляет частоту постановки в очередь с момента предыдущего вычисления.
+         * Если с него прошло меньше секунды, возвращается предыдущее значение
+         */
+        private double enqueueRate(long nowNanos, long total) {
+            RateSample sample = enqueueSample.get();
+            long elapsed = nowNanos - sample.nanos;
+            if (elapsed < MIN_RATE_INTERVAL_NANOS) {
+                return sample.rate;
+            }
+            double rate = (total - sample.count) * 1e9 / elapsed;
+            enqueueSample.compareAndSet(sample, new RateSample(nowNanos, total, rate));
+            return rate;
+        }
+
+        private record RateSample(long nanos, long count, double rate) {
+        }
+    }
+
+    /**
+     * Гистограмма времени с логарифмически-линейными интервалами, как в HdrHistogram: каждый интервал
+     * между степенями двойки делится на 16 равных частей, поэтому относительная погрешность не больше 1/16.
+     * Запись - атомарное увеличение счётчика интервала, без блокировок и выделения памяти
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * @param nanos измеренное время, отрицательные значения считаются нулём
+         */
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            totalNanos.add(value);
+            if (value > maxNanos.get()) {
+                maxNanos.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        /**
+         * @return номер интервала, в который попадает значение
+         */
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * @return наибольшее значение, попадающее в интервал
+         */
+        static long upperBound(int index) {
+            if (index + 1 >= BUCKETS) {
+                return Long.MAX_VALUE;
+            }
+            return lowerBound(index + 1) - 1;
+        }
+
+        private static long lowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            long max = maxNanos.get();
+            return new HistogramSnapshot(count, Duration.ofNanos(count > 0 ? totalNanos.sum() / count : 0),
+                    percentile(snapshot, count, 0.5, max), percentile(snapshot, count, 0.9, max),
+                    percentile(snapshot, count, 0.99, max), percentile(snapshot, count, 0.999, max), Duration.ofNanos(max));
+        }
+
+        /**
+         * Добавляет гистограмму в текстовом формате Prometheus. Значение интервала гистограммы
+         * относится к границе Prometheus, если верхняя граница интервала не больше неё
+         *
+         * @param text    текст метрик
+         * @param name    имя метрики
+         * @param help    описание метрики
+         * @param buckets границы интервалов в секундах по возрастанию
+         */
+        void appendPrometheus(StringBuilder text, String name, String help, double[] buckets) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                    .append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            int index = 0;
+            for (double bucket : buckets) {
+                long boundNanos = (long) (bucket * 1e9);
+                for (; index < BUCKETS && upperBound(index) <= boundNanos; index++) {
+                    cumulative += counts.get(index);
+                }
+                text.append(name).append("_bucket{le=\"").append(bucket).append("\"} ").append(cumulative).append('\n');
+            }
+            for (; index < BUCKETS; index++) {
+                cumulative += counts.get(index);
+            }
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n')
+                    .append(name).append("_sum ").append(totalNanos.sum() / 1e9).append('\n')
+                    .append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        private static Duration percentile(long[] snapshot, long count, double quantile, long max) {
+            if (count == 0) {
+                return Duration.ZERO;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Duration.ofNanos(Math.min(upperBound(i), max));
+                }
+            }
+            return Duration.ofNanos(max);
+        }
+    }
+
+    /**
+     * Событие JFR: запрос поставлен в очередь. Длительность события - время ожидания места в очереди
+     */
+    @Name("org.example.CrptApi.RequestEnqueued")
+    @Label("Request Enqueued")
+    @Category("CRPT API")
+    @StackTrace(false)
+    static final class RequestEnqueuedEvent extends Event {
+        @Label("Request Number")
+        int number;
+
+        @Label("Priority")
+        String priority;
+
+        @Label("Tenant")
+        String tenant;
+
+        /**
+         * Завершает и записывает событие, если запись событий включена
+         *
+         * @param requestRecord поставленный в очередь запрос
+         */
+        void emit(RequestRecord requestRecord) {
+            end();
+            if (shouldCommit()) {
+                number = requestRecord.number;
+                priority = requestRecord.priority.name();
+                tenant = requestRecord.tenant;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Событие JFR: диспетчер получил разрешение на отправку запроса. Длительность события - ожидание
+     * автоматического выключателя, места для запроса и разрешения ограничителя
+     */
+    @Name("org.example.CrptApi.PermitGranted")
+    @Label("Permit Granted")
+    @Category("CRPT API")
+    @StackTrace(false)
+    static final class PermitGrantedEvent extends Event {
+        @Label("Request Number")
+        int number;
+
+        @Label("Attempt")
+        int attempt;
+
+        @Label("Queue Wait")
+        @jdk.jfr.Description("Time from enqueue, or from the scheduled retry time, to permit grant")
+        @Timespan
+        long queueWait;
+    }
+
+    /**
+     * Событие JFR: получен ответ на запрос или отправка завершилась ошибкой.
+     * Событие записывается потоком, получившим ответ, время запроса передаётся в поле
+     */
+    @Name("org.example.CrptApi.RequestSent")
+    @Label("Request Sent")
+    @Category("CRPT API")
+    @StackTrace(false)
+    static final class RequestSentEvent extends Event {
+        @Label("Request Number")
+        int number;
+
+        @Label("Attempt")
+        int attempt;
+
+        @Label("Status Code")
+        @jdk.jfr.Description("HTTP status code, -1 if the request failed without a response")
+        int statusCode;
+
+        @Label("HTTP Duration")
+        @Timespan
+        long httpDuration;
+
+        @Label("Error")
+        String error;
+
+        /**
+         * Записывает событие, если запись событий включена
+         *
+         * @param number        порядковый номер запроса
+         * @param requestRecord запись с запросом
+         * @param sentNanos     время отправки запроса
+         * @param statusCode    код статуса ответа или -1
+         * @param error         ошибка отправки или null
+         */
+        static void emit(int number, RequestRecord requestRecord, long sentNanos, int statusCode, Throwable error) {
+            RequestSentEvent event = new RequestSentEvent();
+            if (event.shouldCommit()) {
+                event.number = number;
+                event.attempt = requestRecord.attempts() + 1;
+                event.statusCode = statusCode;
+                event.httpDuration = System.nanoTime() - sentNanos;
+                event.error = error != null ? error.toString() : null;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Событие JFR: выполнен callback или завершение future. Длительность события - время выполнения callback
+     */
+    @Name("org.example.CrptApi.Callback")
+    @Label("Callback")
+    @Category("CRPT API")
+    @StackTrace(false)
+    static final class CallbackEvent extends Event {
+        @Label("Request Number")
+        int number;
+
+        @Label("Lag")
+        @jdk.jfr.Description("Time from response to callback start")
+        @Timespan
+        long lag;
+    }
+
+    /**
+     * Поведение исполнителя callback при заполненной очереди
+     */
+    public enum CallbackSaturationPolicy {
+        // Поток отправки ожидает места в очереди
+        BLOCK,
+        // Callback выполняется в потоке отправки
+        CALLER_RUNS,
+        // Callback не выполняется и учитывается в статистике; future всегда завершаются, как при CALLER_RUNS
+        DROP
+    }
+
+    /**
+     * Статистика исполнителя callback
+     *
+     * @param completed    выполнено callback и завершений future
+     * @param dropped      отброшено callback по политике DROP
+     * @param failed       callback, завершившихся исключением
+     * @param queued       callback в очереди
+     * @param meanLag      среднее время от получения ответа до начала callback
+     * @param maxLag       наибольшее время от получения ответа до начала callback
+     * @param meanDuration среднее время выполнения callback
+     */
+    public record CallbackMetrics(long completed, long dropped, long failed, int queued, Duration meanLag, Duration maxLag,
+                                  Duration meanDuration) {
+    }
+
+    /**
+     * Исполнитель callback: пул потоков с ограниченной очередью или, если пул не задан, поток, получивший ответ.
+     * Измеряет задержку от получения ответа до начала callback и время выполнения callback
+     */
+    static final class CallbackExecutor {
+        private final ThreadPoolExecutor executor;
+        private final CallbackSaturationPolicy saturationPolicy;
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder totalLagNanos = new LongAdder();
+        private final LongAdder totalDurationNanos = new LongAdder();
+        private final AtomicLong maxLagNanos = new AtomicLong();
+        private final LatencyHistogram durations;
+
+        CallbackExecutor(int threads, int queueCapacity, CallbackSaturationPolicy saturationPolicy, LatencyHistogram durations) {
+            this.saturationPolicy = saturationPolicy;
+            this.durations = durations;
+            this.executor = threads > 0 ? new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), threadFactory("crpt-callback")) : null;
+            if (executor != null) {
+                // При политике BLOCK задачи кладутся прямо в очередь пула, поэтому потоки должны быть запущены
+                executor.prestartAllCoreThreads();
+            }
+        }
+
+        /**
+         * Выполняет callback по политике заполнения очереди
+         *
+         * @param callback  callback или завершение future
+         * @param number    порядковый номер запроса
+         * @param droppable false для завершения future: его нельзя отбросить, иначе future не завершится
+         */
+        void execute(Runnable callback, int number, boolean droppable) {
+            Runnable task = measured(callback, number, System.nanoTime());
+            if (executor == null || executor.isShutdown()) {
+                task.run();
+                return;
+            }
+            try {
+                if (saturationPolicy == CallbackSaturationPolicy.BLOCK) {
+                    // Очередь пула ограничена, поэтому поток отправки ожидает освобождения места
+                    while (!executor.getQueue().offer(task, 100, TimeUnit.MILLISECONDS)) {
+                        if (executor.isShutdown()) {
+                            task.run();
+                            return;
+                        }
+                    }
+                    // Задача добавлена в обход execute, поэтому, как и сам пул, перепроверяем его после добавления:
+                    // после остановки задача выполняется сразу, иначе недостающий поток пула запускается заново
+                    if (executor.isShutdown() && executor.remove(task)) {
+                        task.run();
+                    } else {
+                        executor.prestartCoreThread();
+                    }
+                    return;
+                }
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                if (saturationPolicy == CallbackSaturationPolicy.DROP && droppable) {
+                    dropped.increment();
+                } else {
+                    task.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                task.run();
+            }
+        }
+
+        private Runnable measured(Runnable callback, int number, long receivedNanos) {
+            return () -> {
+                CallbackEvent event = new CallbackEvent();
+                event.begin();
+                long startNanos = System.nanoTime();
+                long lagNanos = startNanos - receivedNanos;
+                totalLagNanos.add(lagNanos);
+                maxLagNanos.accumulateAndGet(lagNanos, Math::max);
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    failed.increment();
+                    // Исключение callback не прерывает поток пула, но выводится обработчиком потока
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                } finally {
+                    long durationNanos = System.nanoTime() - startNanos;
+                    totalDurationNanos.add(durationNanos);
+                    durations.record(durationNanos);
+                    completed.increment();
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.number = number;
+                        event.lag = lagNanos;
+                        event.commit();
+                    }
+                }
+            };
+        }
+
+        CallbackMetrics metrics() {
+            long count = completed.sum();
+            return new CallbackMetrics(count, dropped.sum(), failed.sum(), executor != null ? executor.getQueue().size() : 0,
+                    Duration.ofNanos(count > 0 ? totalLagNanos.sum() / count : 0), Duration.ofNanos(maxLagNanos.get()),
+                    Duration.ofNanos(count > 0 ? totalDurationNanos.sum() / count : 0));
+        }
+
+        void shutdown() {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Приоритет запроса, учитывается очередью с приоритетами
+     */
+    public enum Priority {
+        // Документы с близким регламентным сроком
+        URGENT,
+        // Обычные документы
+        NORMAL,
+        // Массовая догрузка, отправляется в оставшуюся часть лимита, но не реже заданной доли
+        BACKFILL
+    }
+
+    /**
+     * Место хранения тел запросов, ожидающих отправки
+     */
+    public enum PayloadStorage {
+        // Массивы байт в куче, запись удерживает исходный DTO
+        HEAP,
+        // Блоки памяти вне кучи, в куче остаются только ссылки на тела запросов
+        OFF_HEAP
+    }
+
+    /**
+     * Поведение {@link CrptApi#addRequest} при заполненной очереди
+     */
+    public enum OverflowPolicy {
+        // Ожидать освобождения места
+        BLOCK,
+        // Ожидать освобождения места не дольше offerTimeout, затем отклонить запрос
+        BLOCK_WITH_TIMEOUT,
+        // Сразу отклонить запрос с RejectedExecutionException
+        REJECT,
+        // Вытеснить самый старый запрос из очереди
+        DROP_OLDEST,
+        // Записать тело запроса в сегменты переполнения на диске
+        SPILL_TO_DISK
+    }
+
+    /**
+     * Билдер сервиса отправки запросов
+     */
+    public static class Builder {
+        private Integer requestLimit;
+        private TimeUnit timeUnit;
+        private URI requestUri = URI.create(REQUEST_URL);
+        private DispatchMode dispatchMode = DispatchMode.THREAD_PER_REQUEST;
+        private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private int burstCapacity;
+        private LimiterStrategy limiterStrategy = LimiterStrategy.TOKEN_BUCKET;
+        private final List<RateLimitTier> tiers = new ArrayList<>();
+        private RateLimiter rateLimiter;
+        private boolean adaptive;
+        private int ringBufferCapacity;
+        private int capacity;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private Duration offerTimeout = Duration.ofSeconds(1);
+        private Path spillDirectory;
+        private SerializationMode serializationMode = SerializationMode.PRETTY;
+        private PayloadStorage payloadStorage = PayloadStorage.HEAP;
+        private RetryPolicy retryPolicy = RetryPolicy.defaults();
+        private DeadLetterSink deadLetterSink;
+        private double circuitFailureRateThreshold;
+        private int circuitWindowSize;
+        private Duration circuitOpenDuration;
+        private Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        private Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        private Duration requestDeadline;
+        private double minBackfillShare = -1;
+        private Function<RequestBodyDTO, String> tenantExtractor;
+        private int callbackThreads;
+        private int callbackQueueCapacity;
+        private CallbackSaturationPolicy callbackSaturationPolicy = CallbackSaturationPolicy.CALLER_RUNS;
+        private LogLevel logLevel = LogLevel.DEBUG;
+        private double logSampling = 1;
+        private InetSocketAddress metricsAddress;
+        private final Map<String, Integer> tenantWeights = new HashMap<>();
+        private Path journalDirectory;
+        private JournalSyncMode journalSyncMode = JournalSyncMode.GROUP_COMMIT;
+
+        private Builder() {
+        }
+
+        /**
+         * Задаёт ограничение количества запросов в единицу времени
+         *
+         * @param requestLimit количество запросов
+         * @param timeUnit     единица времени
+         * @return билдер
+         */
+        public Builder requestLimit(@NotNull Integer requestLimit, @NotNull TimeUnit timeUnit) {
+            if (requestLimit == null || requestLimit <= 0) {
+                throw new IllegalArgumentException("requestLimit must be positive: " + requestLimit);
+            }
+            this.requestLimit = requestLimit;
+            this.timeUnit = Objects.requireNonNull(timeUnit, "timeUnit");
+            return this;
+        }
+
+        /**
+         * Задаёт URI для запросов
+         *
+         * @param requestUri URI для запросов
+         * @return билдер
+         */
+        public Builder requestUri(@NotNull URI requestUri) {
+            this.requestUri = Objects.requireNonNull(requestUri, "requestUri");
+            return this;
+        }
+
+        /**
+         * Задаёт режим отправки через пул потоков с ограничением одновременно выполняемых запросов
+         *
+         * @param maxInFlight максимальное количество одновременно выполняемых запросов
+         * @return билдер
+         */
+        public Builder boundedPool(int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+            }
+            this.dispatchMode = DispatchMode.BOUNDED_POOL;
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Задаёт режим отправки
+         *
+         * @param dispatchMode режим отправки
+         * @return билдер
+         */
+        public Builder dispatchMode(@NotNull DispatchMode dispatchMode) {
+            this.dispatchMode = Objects.requireNonNull(dispatchMode, "dispatchMode");
+            return this;
+        }
+
+        /**
+         * Добавляет уровень ограничения поверх основного лимита, например часовую или суточную квоту.
+         * Разрешение выдаётся, только если его допускают все уровни.
+         * Уровень - строгий потолок: в любом скользящем окне выдаётся не больше limit разрешений
+         *
+         * @param limit    количество запросов
+         * @param timeUnit единица времени
+         * @return билдер
+         */
+        public Builder addTier(int limit, @NotNull TimeUnit timeUnit) {
+            tiers.add(new RateLimitTier(limit, timeUnit));
+            return this;
+        }
+
+        /**
+         * Задаёт стратегию ограничения частоты запросов
+         *
+         * @param limiterStrategy стратегия ограничения
+         * @return билдер
+         */
+        public Builder limiterStrategy(@NotNull LimiterStrategy limiterStrategy) {
+            this.limiterStrategy = Objects.requireNonNull(limiterStrategy, "limiterStrategy");
+            return this;
+        }
+
+        /**
+         * Задаёт ёмкость всплеска: сколько разрешений может накопиться за время простоя
+         * и быть выданы подряд. Используется стратегиями TOKEN_BUCKET и GCRA, по умолчанию 1:
+         * разрешения выдаются равномерно по одному за window / limit, всплеск включается только явно
+         *
+         * @param burstCapacity ёмкость token bucket
+         * @return билдер
+         */
+        public Builder burstCapacity(int burstCapacity) {
+            if (burstCapacity <= 0) {
+                throw new IllegalArgumentException("burstCapacity must be positive: " + burstCapacity);
+            }
+            this.burstCapacity = burstCapacity;
+            return this;
+        }
+
+        /**
+         * Задаёт собственный ограничитель частоты запросов вместо token bucket
+         *
+         * @param rateLimiter ограничитель частоты запросов
+         * @return билдер
+         */
+        public Builder rateLimiter(@NotNull RateLimiter rateLimiter) {
+            this.rateLimiter = Objects.requireNonNull(rateLimiter, "rateLimiter");
+            return this;
+        }
+
+        /**
+         * Включает адаптивное управление частотой: при ответах 429 и 503 частота снижается
+         * и выдерживается пауза по Retry-After, затем частота постепенно возвращается к лимиту
+         *
+         * @return билдер
+         */
+        public Builder adaptive() {
+            this.adaptive = true;
+            return this;
+        }
+
+        /**
+         * Задаёт очередь запросов на основе ограниченного кольцевого буфера без блокировок.
+         * При заполненном буфере добавление запроса ожидает освобождения места
+         *
+         * @param capacity ёмкость буфера, округляется вверх до степени двойки, но не меньше двух
+         * @return билдер
+         */
+        public Builder ringBuffer(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive: " + capacity);
+            }
+            this.ringBufferCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Ограничивает ёмкость очереди запросов, поведение при заполнении задаёт {@link #overflowPolicy}
+         *
+         * @param capacity ёмкость очереди
+         * @return билдер
+         */
+        public Builder capacity(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive: " + capacity);
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Задаёт поведение {@link CrptApi#addRequest} при заполненной очереди, по умолчанию BLOCK
+         *
+         * @param overflowPolicy политика заполненной очереди
+         * @return билдер
+         */
+        public Builder overflowPolicy(@NotNull OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "overflowPolicy");
+            return this;
+        }
+
+        /**
+         * Задаёт время ожидания места в очереди для политики BLOCK_WITH_TIMEOUT, по умолчанию 1 секунда
+         *
+         * @param offerTimeout время ожидания
+         * @return билдер
+         */
+        public Builder offerTimeout(@NotNull Duration offerTimeout) {
+            if (offerTimeout.isNegative()) {
+                throw new IllegalArgumentException("offerTimeout must not be negative: " + offerTimeout);
+            }
+            this.offerTimeout = offerTimeout;
+            return this;
+        }
+
+        /**
+         * Задаёт очередь с переполнением на диск: первые hotCapacity запросов хранятся в памяти,
+         * остальные записываются в сегменты в каталоге и заранее подгружаются перед отправкой.
+         * Равносильно capacity(hotCapacity), overflowPolicy(SPILL_TO_DISK), spillDirectory(directory)
+         *
+         * @param directory   каталог сегментов
+         * @param hotCapacity количество запросов, хранимых в памяти
+         * @return билдер
+         */
+        public Builder spillToDisk(@NotNull Path directory, int hotCapacity) {
+            return capacity(hotCapacity).overflowPolicy(OverflowPolicy.SPILL_TO_DISK).spillDirectory(directory);
+        }
+
+        /**
+         * Задаёт каталог файлов переполнения для политики SPILL_TO_DISK, по умолчанию java.io.tmpdir
+         *
+         * @param spillDirectory каталог файлов переполнения
+         * @return билдер
+         */
+        public Builder spillDirectory(@NotNull Path spillDirectory) {
+            this.spillDirectory = Objects.requireNonNull(spillDirectory, "spillDirectory");
+            return this;
+        }
+
+        /**
+         * Задаёт формат JSON тела запроса, по умолчанию PRETTY
+         *
+         * @param serializationMode формат JSON
+         * @return билдер
+         */
+        public Builder serializationMode(@NotNull SerializationMode serializationMode) {
+            this.serializationMode = Objects.requireNonNull(serializationMode, "serializationMode");
+            return this;
+        }
+
+        /**
+         * Задаёт место хранения тел запросов в очереди, по умолчанию HEAP
+         *
+         * @param payloadStorage место хранения тел запросов
+         * @return билдер
+         */
+        public Builder payloadStorage(@NotNull PayloadStorage payloadStorage) {
+            this.payloadStorage = Objects.requireNonNull(payloadStorage, "payloadStorage");
+            return this;
+        }
+
+        /**
+         * Задаёт политику повтора неудачных запросов, по умолчанию {@link RetryPolicy#defaults()}
+         *
+         * @param retryPolicy политика повтора
+         * @return билдер
+         */
+        public Builder retryPolicy(@NotNull RetryPolicy retryPolicy) {
+            this.retryPolicy = Objects.requireNonNull(retryPolicy, "retryPolicy");
+            return this;
+        }
+
+        /**
+         * Задаёт хранилище запросов, отправка которых окончательно не удалась:
+         * попытки исчерпаны или ошибка не повторяемая. По умолчанию такие запросы только логируются
+         *
+         * @param deadLetterSink хранилище недоставленных запросов
+         * @return билдер
+         */
+        public Builder deadLetterSink(@NotNull DeadLetterSink deadLetterSink) {
+            this.deadLetterSink = Objects.requireNonNull(deadLetterSink, "deadLetterSink");
+            return this;
+        }
+
+        /**
+         * Сохраняет недоставленные запросы в файл NDJSON, см. {@link FileDeadLetterSink}
+         *
+         * @param file файл недоставленных запросов
+         * @return билдер
+         */
+        public Builder deadLetterFile(@NotNull Path file) {
+            return deadLetterSink(new FileDeadLetterSink(file));
+        }
+
+        /**
+         * Включает автоматический выключатель отправки. Выключатель размыкается, когда доля отказов
+         * среди последних windowSize запросов достигает failureRateThreshold. Пока выключатель разомкнут,
+         * запросы не извлекаются из очереди и не расходуют разрешения ограничителя. Через openDuration
+         * отправляется один пробный запрос: при успехе выключатель замыкается, при отказе снова размыкается
+         *
+         * @param failureRateThreshold доля отказов, от 0 (не включая) до 1
+         * @param windowSize           количество последних запросов, по которым считается доля отказов
+         * @param openDuration         время до пробного запроса
+         * @return билдер
+         */
+        public Builder circuitBreaker(double failureRateThreshold, int windowSize, @NotNull Duration openDuration) {
+            if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+                throw new IllegalArgumentException("failureRateThreshold must be in (0, 1]: " + failureRateThreshold);
+            }
+            if (windowSize < 1) {
+                throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+            }
+            if (openDuration.isNegative()) {
+                throw new IllegalArgumentException("openDuration must not be negative: " + openDuration);
+            }
+            this.circuitFailureRateThreshold = failureRateThreshold;
+            this.circuitWindowSize = windowSize;
+            this.circuitOpenDuration = openDuration;
+            return this;
+        }
+
+        /**
+         * Задаёт время подключения к серверу, по умолчанию 10 секунд
+         *
+         * @param connectTimeout время подключения
+         * @return билдер
+         */
+        public Builder connectTimeout(@NotNull Duration connectTimeout) {
+            this.connectTimeout = requirePositive(connectTimeout, "connectTimeout");
+            return this;
+        }
+
+        /**
+         * Задаёт время ожидания ответа на один запрос, по умолчанию 30 секунд.
+         * По истечении попытка завершается с {@link java.net.http.HttpTimeoutException} и может быть повторена
+         *
+         * @param requestTimeout время ожидания ответа
+         * @return билдер
+         */
+        public Builder requestTimeout(@NotNull Duration requestTimeout) {
+            this.requestTimeout = requirePositive(requestTimeout, "requestTimeout");
+            return this;
+        }
+
+        /**
+         * Задаёт срок отправки запроса, отсчитываемый от вызова addRequest, по умолчанию без срока.
+         * Срок включает ожидание в очереди, все попытки и повторы. Запрос, не отправленный до срока,
+         * завершается с {@link TimeoutException}, не расходуя разрешение ограничителя.
+         * Для запросов с callback вместо future истечение срока видно только в логе, callback не вызывается
+         *
+         * @param requestDeadline срок отправки
+         * @return билдер
+         */
+        public Builder requestDeadline(@NotNull Duration requestDeadline) {
+            this.requestDeadline = requirePositive(requestDeadline, "requestDeadline");
+            return this;
+        }
+
+        /**
+         * Включает очередь с приоритетами: сначала отправляются запросы URGENT, затем NORMAL, затем BACKFILL,
+         * внутри приоритета - в порядке сроков отправки, запросы без срока - в порядке добавления.
+         * Пока в очереди есть запросы BACKFILL, им достаётся не меньше minBackfillShare отправок
+         * и, значит, не меньше этой доли лимита запросов при полной загрузке.
+         * Не совместима с ringBuffer и политикой SPILL_TO_DISK
+         *
+         * @param minBackfillShare наименьшая доля отправок для BACKFILL, от 0 до 1 (не включая)
+         * @return билдер
+         */
+        public Builder priorityScheduling(double minBackfillShare) {
+            if (!(minBackfillShare >= 0 && minBackfillShare < 1)) {
+                throw new IllegalArgumentException("minBackfillShare must be in [0, 1): " + minBackfillShare);
+            }
+            this.minBackfillShare = minBackfillShare;
+            return this;
+        }
+
+        /**
+         * Включает справедливую очередь по участникам с участником из поля participant_inn,
+         * см. {@link #fairQueuing(Function)}
+         *
+         * @return билдер
+         */
+        public Builder fairQueuing() {
+            return fairQueuing(requestBodyDTO -> requestBodyDTO.participant_inn);
+        }
+
+        /**
+         * Включает справедливую очередь по участникам: у каждого участника своя очередь,
+         * очереди обходятся по кругу (deficit round robin), за один обход участник отправляет
+         * столько запросов, каков его вес. Так один участник с большим количеством документов
+         * не задерживает остальных, и каждый получает долю лимита запросов по своему весу.
+         * Не совместима с ringBuffer, priorityScheduling и политикой SPILL_TO_DISK
+         *
+         * @param tenantExtractor определяет участника по DTO запроса
+         * @return билдер
+         */
+        public Builder fairQueuing(@NotNull Function<RequestBodyDTO, String> tenantExtractor) {
+            this.tenantExtractor = Objects.requireNonNull(tenantExtractor, "tenantExtractor");
+            return this;
+        }
+
+        /**
+         * Задаёт вес участника в справедливой очереди, по умолчанию 1
+         *
+         * @param tenant участник
+         * @param weight количество запросов участника за один обход очередей
+         * @return билдер
+         */
+        public Builder tenantWeight(@NotNull String tenant, int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be positive: " + weight);
+            }
+            tenantWeights.put(Objects.requireNonNull(tenant, "tenant"), weight);
+            return this;
+        }
+
+        /**
+         * Выполняет callback и завершение future в отдельном пуле потоков с ограниченной очередью,
+         * чтобы медленные callback не удерживали поток отправки и место среди одновременно выполняемых запросов.
+         * По умолчанию callback выполняются в потоке, получившем ответ
+         *
+         * @param threads            количество потоков
+         * @param queueCapacity      ёмкость очереди callback
+         * @param saturationPolicy   поведение при заполненной очереди
+         * @return билдер
+         */
+        public Builder callbackExecutor(int threads, int queueCapacity, @NotNull CallbackSaturationPolicy saturationPolicy) {
+            if (threads <= 0 || queueCapacity <= 0) {
+                throw new IllegalArgumentException("threads and queueCapacity must be positive: " + threads + ", " + queueCapacity);
+            }
+            this.callbackThreads = threads;
+            this.callbackQueueCapacity = queueCapacity;
+            this.callbackSaturationPolicy = Objects.requireNonNull(saturationPolicy, "saturationPolicy");
+            return this;
+        }
+
+        /**
+         * Задаёт наименьший уровень сообщений лога, по умолчанию DEBUG - все сообщения, включая этапы каждого запроса
+         *
+         * @param logLevel уровень лога
+         * @return билдер
+         */
+        public Builder logLevel(@NotNull LogLevel logLevel) {
+            this.logLevel = Objects.requireNonNull(logLevel, "logLevel");
+            return this;
+        }
+
+        /**
+         * Задаёт долю запросов, сообщения DEBUG и INFO о которых попадают в лог, по умолчанию 1.
+         * Выбираются запросы с номером, кратным round(1 / sampling), поэтому этапы одного запроса
+         * попадают в лог вместе. Сообщения сервиса, WARN и ERROR не прореживаются
+         *
+         * @param sampling доля запросов, от 0 (не включая) до 1
+         * @return билдер
+         */
+        public Builder logSampling(double sampling) {
+            if (!(sampling > 0 && sampling <= 1)) {
+                throw new IllegalArgumentException("sampling must be in (0, 1]: " + sampling);
+            }
+            this.logSampling = sampling;
+            return this;
+        }
+
+        /**
+         * Включает HTTP сервер, отдающий метрики по пути /metrics в текстовом формате Prometheus.
+         * Сервер останавливается вместе с сервисом
+         *
+         * @param address адрес сервера, порт 0 - любой свободный порт, см. {@link CrptApi#metricsAddress()}
+         * @return билдер
+         */
+        public Builder metricsEndpoint(@NotNull InetSocketAddress address) {
+            this.metricsAddress = Objects.requireNonNull(address, "address");
+            return this;
+        }
+
+        private static Duration requirePositive(Duration duration, String name) {
+            if (duration.isNegative() || duration.isZero()) {
+                throw new IllegalArgumentException(name + " must be positive: " + duration);
+            }
+            return duration;
+        }
+
+        /**
+         * Включает журнал запросов в каталоге. Добавленные запросы записываются в журнал до постановки в очередь,
+         * запросы с окончательным результатом - ответом, исчерпанными повторами или истёкшим сроком - отмечаются
+         * как обработанные, не отправленные ставятся в очередь при следующем запуске.
+         * Запросы, восстановленные из журнала, отправляются без callback
+         *
+         * @param directory каталог журнала
+         * @param syncMode  режим сброса журнала на диск
+         * @return билдер
+         */
+        public Builder journal(@NotNull Path directory, @NotNull JournalSyncMode syncMode) {
+            this.journalDirectory = Objects.requireNonNull(directory, "directory");
+            this.journalSyncMode = Objects.requireNonNull(syncMode, "syncMode");
+            return this;
+        }
+
+        /**
+         * Создаёт и запускает сервис
+         *
+         * @return сервис отправки запросов
+         */
+        public CrptApi build() {
+            if (requestLimit == null) {
+                throw new IllegalStateException("requestLimit is not set");
+            }
+            if (rateLimiter != null && !tiers.isEmpty()) {
+                throw new IllegalStateException("tiers cannot be combined with a custom rateLimiter");
+            }
+            if (ringBufferCapacity > 0 && capacity > 0) {
+                throw new IllegalStateException("capacity cannot be combined with ringBuffer, the ring buffer is bounded by its own capacity");
+            }
+            if (ringBufferCapacity == 0 && capacity == 0 && overflowPolicy != OverflowPolicy.BLOCK) {
+                throw new IllegalStateException("overflowPolicy " + overflowPolicy + " requires a bounded queue");
+            }
+            if (minBackfillShare >= 0 && (ringBufferCapacity > 0 || overflowPolicy == OverflowPolicy.SPILL_TO_DISK)) {
+                throw new IllegalStateException("priorityScheduling cannot be combined with ringBuffer or SPILL_TO_DISK");
+            }
+            if (tenantExtractor != null && (ringBufferCapacity > 0 || minBackfillShare >= 0
+                    || overflowPolicy == OverflowPolicy.SPILL_TO_DISK)) {
+                throw new IllegalStateException("fairQueuing cannot be combined with ringBuffer, priorityScheduling or SPILL_TO_DISK");
+            }
+            if (ringBufferCapacity > 0 && overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                throw new IllegalStateException("DROP_OLDEST is not supported by the single-consumer ring buffer");
+            }
+            return new CrptApi(this);
+        }
+    }
+
+    /**
+     * Ограничитель частоты запросов.
+     * Методы {@link #nanosUntilPermit} и {@link #acquire} вызываются только потоком диспетчера,
+     * {@link #availablePermits} может вызываться из любого потока
+     */
+    public interface RateLimiter {
+
+        /**
+         * Возвращает время до появления разрешения
+         *
+         * @param nowNanos текущее время {@link System#nanoTime()}
+         * @return 0, если разрешение доступно сейчас, иначе время ожидания в наносекундах
+         */
+        long nanosUntilPermit(long nowNanos);
+
+        /**
+         * Занимает разрешение, доступность которого проверена {@link #nanosUntilPermit}
+         *
+         * @param nowNanos текущее время {@link System#nanoTime()}
+         */
+        void acquire(long nowNanos);
+
+        /**
+         * Возвращает количество разрешений, доступных без ожидания
+         *
+         * @param nowNanos текущее время {@link System#nanoTime()}
+         * @return количество доступных разрешений
+         */
+        int availablePermits(long nowNanos);
+
+        /**
+         * Сообщает ограничителю результат запроса. Вызывается из потоков получения ответа
+         *
+         * @param sentNanos       время отправки запроса {@link System#nanoTime()}
+         * @param statusCode      код ответа
+         * @param retryAfterNanos задержка из заголовка Retry-After в наносекундах или -1, если её нет
+         */
+        default void onResponse(long sentNanos, int statusCode, long retryAfterNanos) {
+        }
+    }
+
+    /**
+     * Адаптивный ограничитель (AIMD) поверх основного: при ответах 429 и 503 снижает частоту вдвое
+     * и приостанавливает выдачу на время из Retry-After, без ограничений со стороны сервера
+     * увеличивает частоту на {@link #INCREASE_STEP} лимита за окно, пока не вернётся к лимиту
+     */
+    public static class AdaptiveRateLimiter implements RateLimiter {
+        private static final double DECREASE_FACTOR = 0.5;
+        private static final double INCREASE_STEP = 0.1;
+        private static final double MIN_RATE_FACTOR = 0.05;
+
+        private final RateLimiter delegate;
+        private final double fullRateIntervalNanos;
+        private final long windowNanos;
+        private volatile double rateFactor = 1.0;
+        private volatile long pausedUntilNanos;
+        private long lastDecreaseNanos;
+        private long lastIncreaseNanos;
+        private long nextPermitNanos;
+
+        /**
+         * @param delegate    основной ограничитель
+         * @param limit       количество разрешений за окно
+         * @param windowNanos длительность окна в наносекундах
+         */
+        public AdaptiveRateLimiter(RateLimiter delegate, int limit, long windowNanos) {
+            this.delegate = Objects.requireNonNull(delegate, "delegate");
+            this.fullRateIntervalNanos = (double) windowNanos / limit;
+            this.windowNanos = windowNanos;
+            long now = System.nanoTime();
+            this.lastDecreaseNanos = now - 1;
+            this.lastIncreaseNanos = now;
+            this.nextPermitNanos = now;
+        }
+
+        /**
+         * @return основной ограничитель
+         */
+        public RateLimiter delegate() {
+            return delegate;
+        }
+
+        /**
+         * @return текущая доля лимита, с которой выдаются разрешения
+         */
+        public double rateFactor() {
+            return rateFactor;
+        }
+
+        @Override
+        public long nanosUntilPermit(long nowNanos) {
+            long wait = Math.max(pausedUntilNanos - nowNanos, 0);
+            if (rateFactor < 1.0) {
+                wait = Math.max(wait, nextPermitNanos - nowNanos);
+            }
+            return Math.max(wait, delegate.nanosUntilPermit(nowNanos));
+        }
+
+        @Override
+        public void acquire(long nowNanos) {
+            delegate.acquire(nowNanos);
+            nextPermitNanos = Math.max(nextPermitNanos, nowNanos) + (long) (fullRateIntervalNanos / rateFactor);
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            return throttled(nowNanos) ? 0 : delegate.availablePermits(nowNanos);
+        }
+
+        /**
+         * @param nowNanos текущее время {@link System#nanoTime()}
+         * @return true, если выдача приостановлена по Retry-After или следующее разрешение при сниженной частоте ещё не наступило
+         */
+        boolean throttled(long nowNanos) {
+            return pausedUntilNanos > nowNanos || (rateFactor < 1.0 && nextPermitNanos > nowNanos);
+        }
+
+        @Override
+        public synchronized void onResponse(long sentNanos, int statusCode, long retryAfterNanos) {
+            long now = System.nanoTime();
+            if (statusCode == 429 || statusCode == 503) {
+                if (retryAfterNanos >= 0) {
+                    pausedUntilNanos = Math.max(pausedUntilNanos, now + retryAfterNanos);
+                }
+                // Ответы на запросы, отправленные до предыдущего снижения, частоту повторно не снижают
+                if (sentNanos - lastDecreaseNanos > 0) {
+                    rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor * DECREASE_FACTOR);
+                    lastDecreaseNanos = now;
+                    lastIncreaseNanos = now;
+                }
+            } else if (statusCode >= 200 && statusCode < 300 && rateFactor < 1.0 && now - lastIncreaseNanos >= windowNanos) {
+                rateFactor = Math.min(1.0, rateFactor + INCREASE_STEP);
+                lastIncreaseNanos = now;
+            }
+        }
+    }
+
+    /**
+     * Уровень ограничения: количество запросов в единицу времени
+     *
+     * @param limit    количество запросов
+     * @param timeUnit единица времени
+     */
+    public record RateLimitTier(int limit, TimeUnit timeUnit) {
+        public RateLimitTier {
+            if (limit <= 0) {
+                throw new IllegalArgumentException("limit must be positive: " + limit);
+            }
+            Objects.requireNonNull(timeUnit, "timeUnit");
+        }
+
+        /**
+         * @return длительность окна в наносекундах
+         */
+        public long windowNanos() {
+            return timeUnit.toNanos(1);
+        }
+    }
+
+    /**
+     * Составной ограничитель из нескольких уровней.
+     * Разрешение занимается во всех уровнях сразу, только если его допускает каждый уровень.
+     * Так как проверка и занятие выполняются одним потоком диспетчера, дополнительная синхронизация не нужна
+     */
+    public static class CompositeRateLimiter implements RateLimiter {
+        private final Map<RateLimitTier, RateLimiter> tiers;
+        private final RateLimiter[] limiters;
+
+        /**
+         * @param tiers ограничители по уровням
+         */
+        public CompositeRateLimiter(Map<RateLimitTier, RateLimiter> tiers) {
+            if (tiers.isEmpty()) {
+                throw new IllegalArgumentException("tiers must not be empty");
+            }
+            this.tiers = new LinkedHashMap<>(tiers);
+            this.limiters = this.tiers.values().toArray(new RateLimiter[0]);
+        }
+
+        @Override
+        public long nanosUntilPermit(long nowNanos) {
+            long wait = 0;
+            for (RateLimiter limiter : limiters) {
+                wait = Math.max(wait, limiter.nanosUntilPermit(nowNanos));
+            }
+            return wait;
+        }
+
+        @Override
+        public void acquire(long nowNanos) {
+            for (RateLimiter limiter : limiters) {
+                limiter.acquire(nowNanos);
+            }
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            int available = Integer.MAX_VALUE;
+            for (RateLimiter limiter : limiters) {
+                available = Math.min(available, limiter.availablePermits(nowNanos));
+            }
+            return available;
+        }
+
+        /**
+         * Возвращает количество разрешений, доступных без ожидания, по каждому уровню
+         *
+         * @param nowNanos текущее время {@link System#nanoTime()}
+         * @return доступные разрешения по уровням
+         */
+        public Map<RateLimitTier, Integer> remainingPermits(long nowNanos) {
+            Map<RateLimitTier, Integer> remaining = new LinkedHashMap<>();
+            tiers.forEach((tier, limiter) -> remaining.put(tier, limiter.availablePermits(nowNanos)));
+            return remaining;
+        }
+    }
+
+    /**
+     * Стратегии ограничения частоты запросов
+     */
+    public enum LimiterStrategy {
+        // Token bucket с равномерным пополнением, допускает всплеск до ёмкости корзины, по умолчанию 1
+        TOKEN_BUCKET,
+        // Журнал времён выдачи: не более limit разрешений в любом окне, память O(limit)
+        SLIDING_WINDOW_LOG,
+        // Счётчики по корзинам окна: не более limit разрешений в любом окне, память O(1)
+        SLIDING_WINDOW_COUNTER,
+        // Generic cell rate algorithm: разрешения не чаще одного за window / limit с допуском на всплеск
+        GCRA;
+
+        /**
+         * Создаёт ограничитель по стратегии
+         *
+         * @param limit         количество разрешений за окно
+         * @param windowNanos   длительность окна в наносекундах
+         * @param burstCapacity ёмкость всплеска, 0 - значение стратегии по умолчанию
+         * @return ограничитель частоты запросов
+         */
+        public RateLimiter create(int limit, long windowNanos, int burstCapacity) {
+            return switch (this) {
+                case TOKEN_BUCKET -> new TokenBucketRateLimiter(limit, windowNanos, burstCapacity > 0 ? burstCapacity : 1);
+                case SLIDING_WINDOW_LOG -> new SlidingWindowLogRateLimiter(limit, windowNanos);
+                case SLIDING_WINDOW_COUNTER -> new SlidingWindowCounterRateLimiter(limit, windowNanos);
+                case GCRA -> new GcraRateLimiter(limit, windowNanos, burstCapacity > 0 ? burstCapacity : 1);
+            };
+        }
+    }
+
+    /**
+     * Token bucket: разрешения пополняются равномерно по одному за window / limit,
+     * неиспользованные разрешения копятся до ёмкости корзины.
+     * Корзина создаётся с одним разрешением, а не полной, поэтому запуск сервиса не даёт всплеска
+     */
+    public static class TokenBucketRateLimiter implements RateLimiter {
+        private final double nanosPerPermit;
+        private final int capacity;
+        private volatile double tokens;
+        private volatile long lastRefillNanos;
+
+        /**
+         * @param limit       количество разрешений за окно
+         * @param windowNanos длительность окна в наносекундах
+         * @param capacity    ёмкость корзины
+         */
+        public TokenBucketRateLimiter(int limit, long windowNanos, int capacity) {
+            if (limit <= 0 || windowNanos <= 0 || capacity <= 0) {
+                throw new IllegalArgumentException("limit, window and capacity must be positive");
+            }
+            this.nanosPerPermit = (double) windowNanos / limit;
+            this.capacity = capacity;
+            this.tokens = 1;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        @Override
+        public long nanosUntilPermit(long nowNanos) {
+            refill(nowNanos);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * nanosPerPermit);
+        }
+
+        @Override
+        public void acquire(long nowNanos) {
+            refill(nowNanos);
+            tokens -= 1;
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            double elapsed = Math.max(0, nowNanos - lastRefillNanos);
+            return (int) Math.min(capacity, tokens + elapsed / nanosPerPermit);
+        }
+
+        private void refill(long nowNanos) {
+            long elapsed = nowNanos - lastRefillNanos;
+            if (elapsed > 0) {
+                tokens = Math.min(capacity, tokens + elapsed / nanosPerPermit);
+                lastRefillNanos = nowNanos;
+            }
+        }
+    }
+
+    /**
+     * Скользящее окно по журналу: хранит времена последних limit выдач в кольцевом буфере
+     * и выдаёт разрешение, только если самая старая из них вышла за пределы окна
+     */
+    public static class SlidingWindowLogRateLimiter implements RateLimiter {
+        private final long windowNanos;
+        private final long[] grants;
+        private volatile int count;
+        private volatile int head;
+
+        /**
+         * @param limit       количество разрешений за окно
+         * @param windowNanos длительность окна в наносекундах
+         */
+        public SlidingWindowLogRateLimiter(int limit, long windowNanos) {
+            if (limit <= 0 || windowNanos <= 0) {
+                throw new IllegalArgumentException("limit and window must be positive");
+            }
+            this.windowNanos = windowNanos;
+            this.grants = new long[limit];
+        }
+
+        @Override
+        public long nanosUntilPermit(long nowNanos) {
+            if (count < grants.length) {
+                return 0;
+            }
+            // Буфер заполнен, head указывает на самую старую выдачу
+            return Math.max(0, grants[head] + windowNanos - nowNanos);
+        }
+
+        @Override
+        public void acquire(long nowNanos) {
+            grants[head] = nowNanos;
+            head = head + 1 == grants.length ? 0 : head + 1;
+            if (count < grants.length) {
+                count++;
+            }
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            int filled = count;
+            int oldest = filled < grants.length ? 0 : head;
+            int expired = 0;
+            for (int i = 0; i < filled; i++) {
+                if (grants[(oldest + i) % grants.length] + windowNanos > nowNanos) {
+                    break;
+                }
+                expired++;
+            }
+            return grants.length - filled + expired;
+        }
+    }
+
+    /**
+     * Скользящее окно по счётчикам: окно делится на {@link #BUCKETS} корзин, в каждой хранится
+     * количество выдач. Учитываются все корзины, пересекающие окно, поэтому в любом окне
+     * выдаётся не больше limit разрешений ценой задержки до window / BUCKETS. Память O(1)
+     */
+    public static class SlidingWindowCounterRateLimiter implements RateLimiter {
+        private static final int BUCKETS = 10;
+
+        private final int limit;
+        private final long bucketNanos;
+        private final long originNanos;
+        private final int[] counts = new int[BUCKETS + 1];
+        private volatile long headIndex;
+        private volatile int total;
+
+        /**
+         * @param limit       количество разрешений за окно
+         * @param windowNanos длительность окна в наносекундах
+         */
+        public SlidingWindowCounterRateLimiter(int limit, long windowNanos) {
+            if (limit <= 0 || windowNanos <= 0) {
+                throw new IllegalArgumentException("limit and window must be positive");
+            }
+            this.limit = limit;
+            this.bucketNanos = (windowNanos + BUCKETS - 1) / BUCKETS;
+            this.originNanos = System.nanoTime();
+        }
+
+        @Override
+        public long nanosUntilPermit(long nowNanos) {
+            roll(nowNanos);
+            int excess = total - limit + 1;
+            if (excess <= 0) {
+                return 0;
+            }
+            // Ищем самую раннюю корзину, с выходом которой из окна освободится разрешение
+            long oldest = headIndex - BUCKETS;
+            int freed = 0;
+            for (long index = oldest; index <= headIndex; index++) {
+                freed += counts[slot(index)];
+                if (freed >= excess) {
+                    return Math.max(1, originNanos + (index + BUCKETS + 1) * bucketNanos - nowNanos);
+                }
+            }
+            return originNanos + (headIndex + BUCKETS + 1) * bucketNanos - nowNanos;
+        }
+
+        @Override
+        public void acquire(long nowNanos) {
+            roll(nowNanos);
+            counts[slot(headIndex)]++;
+            total++;
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            long expiredUpTo = Math.floorDiv(nowNanos - originNanos, bucketNanos) - BUCKETS - 1;
+            int used = total;
+            for (long index = headIndex - BUCKETS; index <= Math.min(expiredUpTo, headIndex); index++) {
+                used -= counts[slot(index)];
+            }
+            return Math.max(0, limit - used);
+        }
+
+        private void roll(long nowNanos) {
+            long index = Math.floorDiv(nowNanos - originNanos, bucketNanos);
+            if (index <= headIndex) {
+                return;
+            }
+            int cleared = 0;
+            for (long expired = headIndex + 1; expired <= Math.min(index, headIndex + BUCKETS + 1); expired++) {
+                cleared += counts[slot(expired)];
+                counts[slot(expired)] = 0;
+            }
+            total -= cleared;
+            headIndex = index;
+        }
+
+        private int slot(long index) {
+            return (int) Math.floorMod(index, (long) BUCKETS + 1);
+        }
+    }
+
+    /**
+     * Generic cell rate algorithm: хранит теоретическое время прихода следующего запроса (TAT).
+     * Разрешение выдаётся, если до TAT осталось не больше допуска (burstCapacity - 1) * window / limit
+     */
+    public static class GcraRateLimiter implements RateLimiter {
+        private final double emissionNanos;
+        private final double toleranceNanos;
+        private final int burstCapacity;
+        private volatile double theoreticalArrival;
+
+        /**
+         * @param limit         количество разрешений за окно
+         * @param windowNanos   длительность окна в наносекундах
+         * @param burstCapacity количество разрешений, выдаваемых подряд без ожидания
+         */
+        public GcraRateLimiter(int limit, long windowNanos, int burstCapacity) {
+            if (limit <= 0 || windowNanos <= 0 || burstCapacity <= 0) {
+                throw new IllegalArgumentException("limit, window and burst capacity must be positive");
+            }
+            this.emissionNanos = (double) windowNanos / limit;
+            this.toleranceNanos = (burstCapacity - 1) * emissionNanos;
+            this.burstCapacity = burstCapacity;
+            this.theoreticalArrival = System.nanoTime();
+        }
+
+        @Override
+        public long nanosUntilPermit(long nowNanos) {
+            return Math.max(0, (long) Math.ceil(theoreticalArrival - toleranceNanos - nowNanos));
+        }
+
+        @Override
+        public void acquire(long nowNanos) {
+            theoreticalArrival = Math.max(theoreticalArrival, nowNanos) + emissionNanos;
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            double backlog = Math.max(theoreticalArrival, nowNanos) - nowNanos;
+            return (int) Math.max(0, Math.min(burstCapacity, Math.floor((toleranceNanos + emissionNanos - backlog) / emissionNanos)));
+        }
+    }
+
+    /**
+     * Очередь записей с запросами. Добавлять записи может любой поток,
+     * извлекает записи только поток диспетчера, а после его остановки - {@link #shutdownService()}
+     */
+    interface RequestQueue {
+
+        /**
+         * Добавляет запись, при заполненной очереди ожидает освобождения места
+         *
+         * @param requestRecord запись с запросом
+         * @throws InterruptedException если поток прерван во время ожидания
+         */
+        void put(RequestRecord requestRecord) throws InterruptedException;
+
+        /**
+         * Добавляет запись без ожидания
+         *
+         * @param requestRecord запись с запросом
+         * @return false, если очередь заполнена
+         */
+        boolean offer(RequestRecord requestRecord);
+
+        /**
+         * Добавляет запись, при заполненной очереди ожидает освобождения места не дольше timeout
+         *
+         * @param requestRecord запись с запросом
+         * @param timeout       время ожидания
+         * @param unit          единица времени ожидания
+         * @return false, если место не освободилось
+         * @throws InterruptedException если поток прерван во время ожидания
+         */
+        boolean offer(RequestRecord requestRecord, long timeout, TimeUnit unit) throws InterruptedException;
+
+        /**
+         * Извлекает самую старую запись из потока производителя, используется политикой DROP_OLDEST.
+         * Очереди, которые не допускают извлечения производителем, отклоняют вызов, а {@link Builder#build()}
+         * не допускает их сочетания с DROP_OLDEST
+         *
+         * @return запись или null, если очередь пуста
+         * @throws UnsupportedOperationException если очередь не поддерживает извлечение производителем
+         */
+        RequestRecord pollOldest();
+
+        /**
+         * Извлекает запись, при пустой очереди ожидает её появления не дольше timeoutNanos
+         *
+         * @param timeoutNanos время ожидания в наносекундах
+         * @return запись с запросом или null, если очередь пуста
+         * @throws InterruptedException если поток прерван во время ожидания
+         */
+        RequestRecord poll(long timeoutNanos) throws InterruptedException;
+
+        /**
+         * Извлекает все записи в порядке очереди
+         *
+         * @param target список, в который добавляются записи
+         */
+        void drainTo(List<RequestRecord> target);
+    }
+
+    /**
+     * Очередь на связном списке, неограниченная при ёмкости Integer.MAX_VALUE
+     */
+    static class LinkedRequestQueue implements RequestQueue {
+        private final LinkedBlockingDeque<RequestRecord> records;
+
+        LinkedRequestQueue(int capacity) {
+            this.records = new LinkedBlockingDeque<>(capacity);
+        }
+
+        @Override
+        public void put(RequestRecord requestRecord) throws InterruptedException {
+            records.put(requestRecord);
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord) {
+            return records.offer(requestRecord);
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord, long timeout, TimeUnit unit) throws InterruptedException {
+            return records.offer(requestRecord, timeout, unit);
+        }
+
+        @Override
+        public RequestRecord pollOldest() {
+            return records.pollFirst();
+        }
+
+        @Override
+        public RequestRecord poll(long timeoutNanos) throws InterruptedException {
+            return records.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void drainTo(List<RequestRecord> target) {
+            records.drainTo(target);
+        }
+    }
+
+    /**
+     * Очередь с приоритетами: отдельная куча для каждого приоритета, упорядоченная по сроку отправки
+     * (earliest deadline first), при равных сроках - по порядку добавления.
+     * Запросы BACKFILL накапливают долю minBackfillShare за каждое извлечение, пока ожидают в очереди,
+     * и при накоплении целой отправки извлекаются раньше запросов с более высоким приоритетом
+     */
+    static class PriorityRequestQueue implements RequestQueue {
+        private static final Comparator<Entry> EARLIEST_DEADLINE_FIRST = (a, b) -> {
+            long x = a.requestRecord.deadlineNanos;
+            long y = b.requestRecord.deadlineNanos;
+            if (x != y) {
+                if (x == NO_DEADLINE || y == NO_DEADLINE) {
+                    return x == NO_DEADLINE ? 1 : -1;
+                }
+                return Long.signum(x - y);
+            }
+            return Long.compare(a.sequence, b.sequence);
+        };
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final List<PriorityQueue<Entry>> classes = new ArrayList<>();
+        private final int capacity;
+        private final double minBackfillShare;
+        private double backfillCredit;
+        private long sequence;
+        private int size;
+
+        PriorityRequestQueue(int capacity, double minBackfillShare) {
+            this.capacity = capacity;
+            this.minBackfillShare = minBackfillShare;
+            for (int i = 0; i < Priority.values().length; i++) {
+                classes.add(new PriorityQueue<>(EARLIEST_DEADLINE_FIRST));
+            }
+        }
+
+        @Override
+        public void put(RequestRecord requestRecord) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (size == capacity) {
+                    notFull.await();
+                }
+                insert(requestRecord);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord) {
+            lock.lock();
+            try {
+                if (size == capacity) {
+                    return false;
+                }
+                insert(requestRecord);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord, long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (size == capacity) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                insert(requestRecord);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Вытесняет наименее важный запрос: с самым поздним сроком в самом низком непустом приоритете
+         */
+        @Override
+        public RequestRecord pollOldest() {
+            lock.lock();
+            try {
+                for (int i = classes.size() - 1; i >= 0; i--) {
+                    PriorityQueue<Entry> queue = classes.get(i);
+                    if (!queue.isEmpty()) {
+                        Entry latest = Collections.max(queue, EARLIEST_DEADLINE_FIRST);
+                        queue.remove(latest);
+                        size--;
+                        notFull.signal();
+                        return latest.requestRecord;
+                    }
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public RequestRecord poll(long timeoutNanos) throws InterruptedException {
+            long nanos = timeoutNanos;
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return extract();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void drainTo(List<RequestRecord> target) {
+            lock.lock();
+            try {
+                for (PriorityQueue<Entry> queue : classes) {
+                    for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) {
+                        target.add(entry.requestRecord);
+                    }
+                }
+                size = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void insert(RequestRecord requestRecord) {
+            classes.get(requestRecord.priority.ordinal()).add(new Entry(requestRecord, sequence++));
+            size++;
+            notEmpty.signal();
+        }
+
+        private RequestRecord extract() {
+            PriorityQueue<Entry> backfill = classes.get(Priority.BACKFILL.ordinal());
+            PriorityQueue<Entry> selected = null;
+            if (backfill.isEmpty()) {
+                // Доля не копится, пока запросов BACKFILL нет
+                backfillCredit = 0;
+            } else {
+                backfillCredit += minBackfillShare;
+                if (backfillCredit >= 1) {
+                    selected = backfill;
+                }
+            }
+            if (selected == null) {
+                for (PriorityQueue<Entry> queue : classes) {
+                    if (!queue.isEmpty()) {
+                        selected = queue;
+                        break;
+                    }
+                }
+            }
+            if (selected == backfill) {
+                backfillCredit = Math.max(0, backfillCredit - 1);
+            }
+            size--;
+            notFull.signal();
+            return selected.poll().requestRecord;
+        }
+
+        private record Entry(RequestRecord requestRecord, long sequence) {
+        }
+    }
+
+    /**
+     * Справедливая очередь по участникам: deficit round robin по очередям участников.
+     * Участник в начале обхода получает кредит, равный весу, каждый извлечённый запрос расходует единицу кредита,
+     * при исчерпании кредита участник переходит в конец обхода. Все запросы расходуют одно разрешение ограничителя,
+     * поэтому доля участника в лимите запросов пропорциональна весу среди участников с непустыми очередями.
+     * Очередь участника удаляется, как только становится пустой
+     */
+    static class FairRequestQueue implements RequestQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Map<String, TenantQueue> tenants = new HashMap<>();
+        private final ArrayDeque<TenantQueue> active = new ArrayDeque<>();
+        private final Map<String, Integer> weights;
+        private final int capacity;
+        private int size;
+
+        FairRequestQueue(int capacity, Map<String, Integer> weights) {
+            this.capacity = capacity;
+            this.weights = Map.copyOf(weights);
+        }
+
+        @Override
+        public void put(RequestRecord requestRecord) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (size == capacity) {
+                    notFull.await();
+                }
+                insert(requestRecord);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord) {
+            lock.lock();
+            try {
+                if (size == capacity) {
+                    return false;
+                }
+                insert(requestRecord);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord, long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (size == capacity) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                insert(requestRecord);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Вытесняет самый старый запрос участника с самой длинной очередью
+         */
+        @Override
+        public RequestRecord pollOldest() {
+            lock.lock();
+            try {
+                TenantQueue longest = null;
+                for (TenantQueue tenant : active) {
+                    if (longest == null || tenant.records.size() > longest.records.size()) {
+                        longest = tenant;
+                    }
+                }
+                if (longest == null) {
+                    return null;
+                }
+                RequestRecord dropped = longest.records.poll();
+                if (longest.records.isEmpty()) {
+                    active.remove(longest);
+                    tenants.remove(longest.tenant);
+                }
+                size--;
+                notFull.signal();
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public RequestRecord poll(long timeoutNanos) throws InterruptedException {
+            long nanos = timeoutNanos;
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return extract();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Извлекает все записи в порядке обхода: очереди участников целиком, в порядке их следования в обходе
+         */
+        @Override
+        public void drainTo(List<RequestRecord> target) {
+            lock.lock();
+            try {
+                for (TenantQueue tenant : active) {
+                    target.addAll(tenant.records);
+                }
+                active.clear();
+                tenants.clear();
+                size = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void insert(RequestRecord requestRecord) {
+            String key = requestRecord.tenant != null ? requestRecord.tenant : "";
+            TenantQueue tenant = tenants.get(key);
+            if (tenant == null) {
+                tenant = new TenantQueue(key, weights.getOrDefault(key, 1));
+                tenants.put(key, tenant);
+                active.addLast(tenant);
+            }
+            tenant.records.add(requestRecord);
+            size++;
+            notEmpty.signal();
+        }
+
+        private RequestRecord extract() {
+            TenantQueue tenant = active.peekFirst();
+            if (tenant.deficit < 1) {
+                // Участник в начале обхода получает кредит на свой вес
+                tenant.deficit += tenant.weight;
+            }
+            tenant.deficit--;
+            RequestRecord requestRecord = tenant.records.poll();
+            if (tenant.records.isEmpty()) {
+                active.pollFirst();
+                tenants.remove(tenant.tenant);
+            } else if (tenant.deficit < 1) {
+                active.addLast(active.pollFirst());
+            }
+            size--;
+            notFull.signal();
+            return requestRecord;
+        }
+
+        /**
+         * Очередь участника и его остаток кредита в текущем обходе
+         */
+        private static final class TenantQueue {
+            private final String tenant;
+            private final int weight;
+            private final ArrayDeque<RequestRecord> records = new ArrayDeque<>();
+            private int deficit;
+
+            TenantQueue(String tenant, int weight) {
+                this.tenant = tenant;
+                this.weight = weight;
+            }
+        }
+    }
+
+    /**
+     * Ограниченная очередь на кольцевом буфере {@link MpscRingBuffer}
+     */
+    static class RingBufferRequestQueue implements RequestQueue {
+        private final MpscRingBuffer<RequestRecord> records;
+
+        RingBufferRequestQueue(int capacity) {
+            this.records = new MpscRingBuffer<>(capacity);
+        }
+
+        @Override
+        public void put(RequestRecord requestRecord) throws InterruptedException {
+            records.put(requestRecord);
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord) {
+            return records.offer(requestRecord);
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord, long timeout, TimeUnit unit) throws InterruptedException {
+            return records.offer(requestRecord, timeout, unit);
+        }
+
+        /**
+         * Кольцевой буфер допускает только одного потребителя - поток диспетчера
+         */
+        @Override
+        public RequestRecord pollOldest() {
+            throw new UnsupportedOperationException("single-consumer ring buffer cannot be polled by producers");
+        }
+
+        @Override
+        public RequestRecord poll(long timeoutNanos) throws InterruptedException {
+            return records.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void drainTo(List<RequestRecord> target) {
+            for (RequestRecord requestRecord = records.poll(); requestRecord != null; requestRecord = records.poll()) {
+                target.add(requestRecord);
+            }
+        }
+    }
+
+    /**
+     * Очередь с переполнением на диск из двух уровней. Горячая голова очереди хранится в памяти,
+     * при её заполнении тела запросов дописываются в сегменты на диске, а в памяти остаются только
+     * callback, future и положение в журнале. Пока на диске есть записи, новые записи тоже пишутся на диск,
+     * чтобы сохранить порядок очереди.
+     * Поток предзагрузки заранее читает самые старые записи с диска обратно в память, включая ещё не закрытый
+     * записываемый сегмент, поэтому диспетчер берёт тела запросов из памяти и не ожидает чтения с диска
+     */
+    static class SpillingRequestQueue implements RequestQueue {
+        private static final long SPILL_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+        private static final int SEGMENT_RECORDS = 8192;
+        private static final int PREFETCH_LOW_WATERMARK = SEGMENT_RECORDS;
+
+        private final RequestQueue memory;
+        private final Path directory;
+        private final ArrayDeque<RequestRecord> spilled = new ArrayDeque<>();
+        private final ArrayDeque<SpillSegment> sealed = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> prefetched = new ArrayDeque<>();
+        private final Thread prefetcher;
+        /**
+         * Блокировка записи на диск: защищает writing и nextSegment, под ней выполняются запись и сброс сегмента.
+         * Захватывается раньше монитора очереди
+         */
+        private final Object writeLock = new Object();
+        private SpillSegment writing;
+        private long nextSegment;
+        private boolean closed;
+        private boolean consumerWaiting;
+
+        SpillingRequestQueue(RequestQueue memory, Path directory) throws IOException {
+            this.memory = memory;
+            Files.createDirectories(directory);
+            this.directory = Files.createTempDirectory(directory, "crpt-spill-");
+            this.prefetcher = new Thread(this::prefetchLoop, "crpt-spill-prefetch");
+            prefetcher.setDaemon(true);
+            prefetcher.start();
+        }
+
+        @Override
+        public void put(RequestRecord requestRecord) {
+            offer(requestRecord);
+        }
+
+        /**
+         * Ставит запись в память, пока на диске нет записей, иначе дописывает её тело в записываемый сегмент.
+         * Запись в файл выполняется под блокировкой записи, а не под монитором очереди, поэтому
+         * {@link #poll(long)} не ждёт дисковых операций производителей. Блокировка записи удерживается от проверки
+         * памяти до публикации записи в spilled, поэтому порядок записей на диске совпадает с порядком в spilled
+         */
+        @Override
+        public boolean offer(RequestRecord requestRecord) {
+            synchronized (writeLock) {
+                synchronized (this) {
+                    if (spilled.isEmpty() && memory.offer(requestRecord)) {
+                        if (consumerWaiting) {
+                            notifyAll();
+                        }
+                        return true;
+                    }
+                }
+                if (writing == null) {
+                    writing = new SpillSegment(directory.resolve("segment-" + nextSegment++ + ".bin"));
+                }
+                SpillSegment segment = writing;
+                segment.append(requestRecord.payload.toByteArray());
+                requestRecord.payload.release();
+                boolean full = segment.count >= SEGMENT_RECORDS;
+                if (full) {
+                    segment.close();
+                    writing = null;
+                }
+                synchronized (this) {
+                    // DTO не удерживается в памяти, при необходимости восстанавливается из тела запроса
+                    spilled.add(requestRecord.withPayload(null));
+                    if (full) {
+                        sealed.add(segment);
+                    }
+                    if (full || prefetched.size() < PREFETCH_LOW_WATERMARK) {
+                        // Хвост на диске меньше сегмента: предзагрузка читает его из записываемого сегмента
+                        notifyAll();
+                    }
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public boolean offer(RequestRecord requestRecord, long timeout, TimeUnit unit) {
+            return offer(requestRecord);
+        }
+
+        /**
+         * Очередь с переполнением на диск не заполняется, поэтому вытеснение ей не требуется
+         */
+        @Override
+        public RequestRecord pollOldest() {
+            throw new UnsupportedOperationException("spilling queue never overflows, DROP_OLDEST does not apply");
+        }
+
+        /**
+         * Извлекает самую старую запись. Записи в памяти всегда старше записей на диске: пока на диске есть записи,
+         * новые записи пишутся на диск. Выбор между памятью и диском выполняется под тем же монитором, под которым
+         * {@link #offer(RequestRecord)} проверяет память и публикует записи с диска, иначе между проверкой памяти
+         * и чтением с диска память могла бы заполниться и запись с диска обогнала бы более старые записи в памяти.
+         * Если предзагрузка отстала, ожидает её не дольше timeoutNanos
+         */
+        @Override
+        public synchronized RequestRecord poll(long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (true) {
+                RequestRecord requestRecord = memory.poll(0);
+                if (requestRecord != null) {
+                    return requestRecord;
+                }
+                if (!spilled.isEmpty()) {
+                    if (!prefetched.isEmpty()) {
+                        RequestRecord stub = spilled.poll();
+                        byte[] requestBody = prefetched.poll();
+                        if (prefetched.size() < PREFETCH_LOW_WATERMARK) {
+                            notifyAll();
+                        }
+                        return stub.withPayload(new HeapPayload(requestBody));
+                    }
+                    // Предзагрузка отстала
+                    notifyAll();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                consumerWaiting = true;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, SPILL_POLL_NANOS));
+                } finally {
+                    consumerWaiting = false;
+                }
+            }
+        }
+
+        /**
+         * Читает записи с диска в память, пока предзагруженных тел меньше нижней границы.
+         * Сначала читаются закрытые сегменты, затем записываемый: его записи сбрасываются на диск под блокировкой
+         * записи и читаются до текущего конца, сегмент остаётся открытым для записи.
+         * Файл сегмента удаляется, когда сегмент закрыт и прочитан полностью.
+         * Монитор очереди удерживается только для выбора сегмента и публикации прочитанных тел
+         */
+        private void prefetchLoop() {
+            try {
+                while (true) {
+                    SpillSegment segment;
+                    int upTo = 0;
+                    synchronized (this) {
+                        while (!closed && !prefetchNeeded()) {
+                            wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        segment = sealed.peek();
+                        if (segment != null) {
+                            upTo = segment.count;
+                        }
+                    }
+                    if (segment == null) {
+                        synchronized (writeLock) {
+                            // Пока поток ждал блокировку записи, записываемый сегмент мог быть закрыт и заменён новым:
+                            // сначала дочитываются закрытые сегменты
+                            synchronized (this) {
+                                segment = sealed.peek();
+                                if (segment != null) {
+                                    upTo = segment.count;
+                                }
+                            }
+                            if (segment == null) {
+                                segment = writing;
+                                if (segment == null) {
+                                    continue;
+                                }
+                                segment.flush();
+                                upTo = segment.count;
+                            }
+                        }
+                    }
+                    // Чтение выполняется без монитора и блокировки записи: производители продолжают дописывать
+                    // записываемый сегмент, потребитель забирает уже предзагруженные записи
+                    List<byte[]> bodies = segment.read(upTo);
+                    boolean exhausted;
+                    synchronized (this) {
+                        prefetched.addAll(bodies);
+                        exhausted = sealed.peek() == segment && segment.consumed == segment.count;
+                        if (exhausted) {
+                            sealed.poll();
+                        }
+                        notifyAll();
+                    }
+                    if (exhausted) {
+                        segment.delete();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Записи в spilled публикуются после записи их тел в сегмент, поэтому записей в spilled больше,
+         * чем предзагруженных тел, только пока на диске есть непрочитанные записи
+         *
+         * @return предзагрузке есть что читать или закрытый сегмент прочитан и его нужно удалить
+         */
+        private boolean prefetchNeeded() {
+            SpillSegment segment = sealed.peek();
+            if (segment != null && segment.consumed == segment.count) {
+                return true;
+            }
+            return prefetched.size() < PREFETCH_LOW_WATERMARK && spilled.size() > prefetched.size();
+        }
+
+        @Override
+        public void drainTo(List<RequestRecord> target) {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                // Сегмент, который читает поток предзагрузки, должен попасть в память до выгрузки очереди
+                prefetcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (writeLock) {
+                if (writing != null) {
+                    writing.close();
+                }
+                synchronized (this) {
+                    memory.drainTo(target);
+                    if (writing != null) {
+                        sealed.add(writing);
+                        writing = null;
+                    }
+                    for (SpillSegment segment : sealed) {
+                        prefetched.addAll(segment.read(segment.count));
+                        segment.delete();
+                    }
+                    sealed.clear();
+                    for (RequestRecord stub = spilled.poll(); stub != null; stub = spilled.poll()) {
+                        target.add(stub.withPayload(new HeapPayload(prefetched.poll())));
+                    }
+                    try {
+                        Files.deleteIfExists(directory);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Сегмент файла переполнения: тела запросов с префиксом длины в порядке записи.
+     * Записывают производители под блокировкой записи очереди, читает один поток - поток предзагрузки,
+     * а после его остановки поток, выгружающий очередь
+     */
+    static class SpillSegment {
+        private final Path path;
+        private DataOutputStream output;
+        private int count;
+        private int consumed;
+        private long readPosition;
+
+        SpillSegment(Path path) {
+            this.path = path;
+        }
+
+        void append(byte[] requestBody) {
+            try {
+                if (output == null) {
+                    output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+                }
+                output.writeInt(requestBody.length);
+                output.write(requestBody);
+                count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Сбрасывает записанные тела запросов в файл, чтобы их можно было прочитать до закрытия сегмента
+         */
+        void flush() {
+            try {
+                if (output != null) {
+                    output.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void close() {
+            try {
+                if (output != null) {
+                    output.close();
+                    output = null;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Читает тела запросов, следующие за уже прочитанными, до записи с номером upTo.
+         * Записи до upTo должны быть сброшены в файл
+         *
+         * @param upTo количество записей сегмента, до которого выполняется чтение
+         * @return прочитанные тела запросов
+         */
+        List<byte[]> read(int upTo) {
+            List<byte[]> bodies = new ArrayList<>(Math.max(0, upTo - consumed));
+            if (upTo <= consumed) {
+                return bodies;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.position(readPosition);
+                DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                for (int i = consumed; i < upTo; i++) {
+                    byte[] requestBody = input.readNBytes(input.readInt());
+                    bodies.add(requestBody);
+                    readPosition += Integer.BYTES + requestBody.length;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            consumed = upTo;
+            return bodies;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Ограниченный кольцевой буфер без блокировок для многих производителей и одного потребителя.
+     * Ячейки выделяются заранее, у каждой ячейки есть номер последовательности:
+     * производитель занимает позицию CAS по хвосту и публикует элемент записью номера ячейки,
+     * потребитель читает опубликованные ячейки по порядку и освобождает их для следующего круга
+     *
+     * @param <E> тип элементов
+     */
+    public static final class MpscRingBuffer<E> {
+        private static final int SPIN_TRIES = 64;
+        private static final long MIN_PARK_NANOS = 10_000L;
+        private static final long MAX_PARK_NANOS = 1_000_000L;
+
+        private final Object[] buffer;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private volatile Thread waitingConsumer;
+
+        /**
+         * @param capacity ёмкость буфера, округляется вверх до степени двойки, но не меньше двух
+         */
+        public MpscRingBuffer(int capacity) {
+            if (capacity <= 0 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity must be in (0, 2^30]: " + capacity);
+            }
+            int size = Integer.highestOneBit(capacity - 1) << 1;
+            // В единственной ячейке номер опубликованного элемента совпал бы с номером свободной ячейки
+            // следующего круга, и производитель перезаписал бы непрочитанный элемент
+            size = Math.max(size, 2);
+            this.buffer = new Object[size];
+            this.sequences = new AtomicLongArray(size);
+            this.mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * Добавляет элемент без ожидания
+         *
+         * @param element элемент
+         * @return false, если буфер заполнен
+         */
+        public boolean offer(E element) {
+            Objects.requireNonNull(element, "element");
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        buffer[index] = element;
+                        sequences.set(index, position + 1);
+                        Thread consumer = waitingConsumer;
+                        if (consumer != null) {
+                            LockSupport.unpark(consumer);
+                        }
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        /**
+         * Добавляет элемент, при заполненном буфере ожидает освобождения места
+         *
+         * @param element элемент
+         * @throws InterruptedException если поток прерван во время ожидания
+         */
+        public void put(E element) throws InterruptedException {
+            long parkNanos = MIN_PARK_NANOS;
+            for (int tries = 0; !offer(element); tries++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (tries < SPIN_TRIES) {
+                    Thread.yield();
+                } else {
+                    // Буфер заполнен надолго: отдаём процессор потребителю, увеличивая паузу
+                    LockSupport.parkNanos(this, parkNanos);
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                }
+            }
+        }
+
+        /**
+         * Добавляет элемент, при заполненном буфере ожидает освобождения места не дольше timeout
+         *
+         * @param element элемент
+         * @param timeout время ожидания
+         * @param unit    единица времени ожидания
+         * @return false, если место не освободилось
+         * @throws InterruptedException если поток прерван во время ожидания
+         */
+        public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            long parkNanos = MIN_PARK_NANOS;
+            for (int tries = 0; !offer(element); tries++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (tries < SPIN_TRIES) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, Math.min(parkNanos, remaining));
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Извлекает элемент без ожидания. Вызывается только потребителем
+         *
+         * @return элемент или null, если буфер пуст
+         */
+        @SuppressWarnings("unchecked")
+        public E poll() {
+            long position = head;
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                return null;
+            }
+            E element = (E) buffer[index];
+            buffer[index] = null;
+            sequences.set(index, position + buffer.length);
+            head = position + 1;
+            return element;
+        }
+
+        /**
+         * Извлекает элемент, при пустом буфере ожидает его появления не дольше timeout.
+         * Вызывается только потребителем
+         *
+         * @param timeout время ожидания
+         * @param unit    единица времени ожидания
+         * @return элемент или null, если буфер пуст
+         * @throws InterruptedException если поток прерван во время ожидания
+         */
+        public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (int tries = 0; ; tries++) {
+                E element = poll();
+                if (element != null) {
+                    return element;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                if (tries < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                waitingConsumer = Thread.currentThread();
+                element = poll();
+                if (element != null) {
+                    waitingConsumer = null;
+                    return element;
+                }
+                LockSupport.parkNanos(this, remaining);
+                waitingConsumer = null;
+            }
+        }
+    }
+
+    /**
+     * Контенейнер для запроса и callback
+     *
+     * @param requestBodyDTO DTO запроса, null для записей, восстановленных с диска, и при хранении тел вне кучи
+     * @param payload        запрос в виде JSON в UTF-8
+     * @param onResponse     callback, вызывается по возвращении ответа
+     * @param future         future асинхронного запроса, null для запросов с callback
+     * @param journalEntry   запись в журнале, null если журнал не включён
+     * @param priority       приоритет запроса
+     * @param tenant         участник, от имени которого отправляется запрос, null без справедливой очереди
+     * @param deadlineNanos  срок отправки по System.nanoTime() или {@link #NO_DEADLINE}
+     * @param history        уже выполненные неудачные попытки отправки
+     * @param enqueuedNanos  время постановки в очередь по System.nanoTime(), для повтора - время, назначенное для повтора
+     * @param number         порядковый номер запроса для логов и событий JFR, сохраняется при повторах
+     */
+    record RequestRecord(RequestBodyDTO requestBodyDTO, Payload payload, Consumer<HttpResponse<String>> onResponse,
+                         CompletableFuture<HttpResponse<String>> future, JournalEntry journalEntry,
+                         Priority priority, String tenant, long deadlineNanos, List<DeliveryAttempt> history,
+                         long enqueuedNanos, int number) {
+
+        RequestRecord(RequestBodyDTO requestBodyDTO, Payload payload, Consumer<HttpResponse<String>> onResponse,
+                      CompletableFuture<HttpResponse<String>> future, JournalEntry journalEntry) {
+            this(requestBodyDTO, payload, onResponse, future, journalEntry, Priority.NORMAL, null, NO_DEADLINE, List.of(),
+                    System.nanoTime(), 0);
+        }
+
+        /**
+         * @param nanos момент времени по System.nanoTime()
+         * @return true, если к этому моменту срок отправки истёк
+         */
+        boolean isExpired(long nanos) {
+            return deadlineNanos != NO_DEADLINE && nanos - deadlineNanos >= 0;
+        }
+
+        /**
+         * @param payload тело запроса
+         * @return запись с другим телом запроса, DTO не переносится
+         */
+        RequestRecord withPayload(Payload payload) {
+            return new RequestRecord(null, payload, onResponse, future, journalEntry, priority, tenant, deadlineNanos, history,
+                    enqueuedNanos, number);
+        }
+
+        /**
+         * @param tenant участник запроса
+         * @return запись с другим участником
+         */
+        RequestRecord withTenant(String tenant) {
+            return new RequestRecord(requestBodyDTO, payload, onResponse, future, journalEntry, priority, tenant, deadlineNanos, history,
+                    enqueuedNanos, number);
+        }
+
+        /**
+         * @param number порядковый номер запроса
+         * @return запись с другим номером
+         */
+        RequestRecord withNumber(int number) {
+            return new RequestRecord(requestBodyDTO, payload, onResponse, future, journalEntry, priority, tenant, deadlineNanos, history,
+                    enqueuedNanos, number);
+        }
+
+        /**
+         * @param enqueuedNanos время постановки в очередь
+         * @return запись с другим временем постановки в очередь
+         */
+        RequestRecord withEnqueuedNanos(long enqueuedNanos) {
+            return new RequestRecord(requestBodyDTO, payload, onResponse, future, journalEntry, priority, tenant, deadlineNanos, history,
+                    enqueuedNanos, number);
+        }
+
+        /**
+         * @return количество уже выполненных попыток отправки
+         */
+        int attempts() {
+            return history.size();
+        }
+
+        /**
+         * @param attempt неудачная попытка отправки
+         * @return запись с попыткой, добавленной в историю
+         */
+        RequestRecord withAttempt(DeliveryAttempt attempt) {
+            List<DeliveryAttempt> attempts = new ArrayList<>(history.size() + 1);
+            attempts.addAll(history);
+            attempts.add(attempt);
+            return new RequestRecord(requestBodyDTO, payload, onResponse, future, journalEntry, priority, tenant, deadlineNanos,
+                    List.copyOf(attempts), enqueuedNanos, number);
+        }
+    }
+
+    /**
+     * Состояния автоматического выключателя
+     */
+    public enum CircuitState {
+        // Запросы отправляются, отказы подсчитываются
+        CLOSED,
+        // Запросы остаются в очереди до истечения времени размыкания
+        OPEN,
+        // Отправлен один пробный запрос, остальные ожидают его результата
+        HALF_OPEN
+    }
+
+    /**
+     * Автоматический выключатель со скользящим окном из последних запросов.
+     * Результаты запросов, отправленных до перехода в HALF_OPEN, в этом состоянии не учитываются,
+     * поэтому состояние определяет только пробный запрос
+     */
+    static final class CircuitBreaker {
+        private final double failureRateThreshold;
+        private final Duration openDuration;
+        private final boolean[] failures;
+        private int next;
+        private int recorded;
+        private int failed;
+        private CircuitState state = CircuitState.CLOSED;
+        private long openUntilNanos;
+        private long halfOpenSinceNanos;
+        private boolean probing;
+
+        /**
+         * @param failureRateThreshold доля отказов, от 0 (не включая) до 1, проверяется билдером
+         * @param windowSize           количество последних запросов в окне
+         * @param openDuration         время до пробного запроса
+         */
+        CircuitBreaker(double failureRateThreshold, int windowSize, Duration openDuration) {
+            this.failureRateThreshold = failureRateThreshold;
+            this.failures = new boolean[windowSize];
+            this.openDuration = openDuration;
+        }
+
+        /**
+         * Ожидает, пока выключатель разрешит отправку. В состоянии HALF_OPEN пропускает только один запрос
+         *
+         * @return true, если разрешён пробный запрос
+         * @throws InterruptedException если поток прерван
+         */
+        synchronized boolean awaitPermission() throws InterruptedException {
+            while (true) {
+                switch (state) {
+                    case CLOSED -> {
+                        return false;
+                    }
+                    case OPEN -> {
+                        long now = System.nanoTime();
+                        if (now - openUntilNanos >= 0) {
+                            state = CircuitState.HALF_OPEN;
+                            halfOpenSinceNanos = now;
+                            probing = false;
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(this, openUntilNanos - now);
+                        }
+                    }
+                    case HALF_OPEN -> {
+                        if (!probing) {
+                            probing = true;
+                            return true;
+                        }
+                        wait();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Учитывает результат запроса
+         *
+         * @param sentNanos время отправки запроса
+         * @param success   true, если сервер ответил без ошибки
+         * @return новое состояние, если оно изменилось, иначе null
+         */
+        synchronized CircuitState onResult(long sentNanos, boolean success) {
+            switch (state) {
+                case CLOSED -> {
+                    if (recorded == failures.length && failures[next]) {
+                        failed--;
+                    }
+                    failures[next] = !success;
+                    if (!success) {
+                        failed++;
+                    }
+                    next = (next + 1) % failures.length;
+                    recorded = Math.min(recorded + 1, failures.length);
+                    if (recorded == failures.length && failed >= failureRateThreshold * failures.length) {
+                        open();
+                        return state;
+                    }
+                }
+                case HALF_OPEN -> {
+                    if (probing && sentNanos - halfOpenSinceNanos >= 0) {
+                        if (success) {
+                            state = CircuitState.CLOSED;
+                            Arrays.fill(failures, false);
+                            next = 0;
+                            recorded = 0;
+                            failed = 0;
+                        } else {
+                            open();
+                        }
+                        notifyAll();
+                        return state;
+                    }
+                }
+                case OPEN -> {
+                    // Результаты запросов, отправленных до размыкания
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Отменяет пробный запрос, который не был отправлен, следующий запрос станет пробным
+         */
+        synchronized void cancelProbe() {
+            if (state == CircuitState.HALF_OPEN) {
+                probing = false;
+                notifyAll();
+            }
+        }
+
+        private void open() {
+            state = CircuitState.OPEN;
+            openUntilNanos = System.nanoTime() + openDuration.toNanos();
+        }
+
+        synchronized CircuitState state() {
+            return state;
+        }
+
+        Duration openDuration() {
+            return openDuration;
+        }
+    }
+
+    /**
+     * Неудачная попытка отправки запроса
+     *
+     * @param time       время получения ответа или ошибки
+     * @param statusCode HTTP статус ответа, -1 если ответ не получен
+     * @param error      ошибка отправки, null если получен ответ
+     */
+    public record DeliveryAttempt(Instant time, int statusCode, String error) {
+    }
+
+    /**
+     * Запрос, отправка которого окончательно не удалась
+     *
+     * @param body       JSON запроса
+     * @param attempts   история попыток отправки
+     * @param lastStatus HTTP статус последнего ответа, -1 если ответ не получен
+     * @param lastError  ошибка последней попытки, null если получен ответ
+     */
+    public record DeadLetter(String body, List<DeliveryAttempt> attempts, int lastStatus, String lastError) {
+    }
+
+    /**
+     * Хранилище недоставленных запросов. Методы могут вызываться из разных потоков
+     */
+    public interface DeadLetterSink {
+
+        /**
+         * Сохраняет недоставленный запрос
+         *
+         * @param deadLetter недоставленный запрос
+         */
+        void accept(DeadLetter deadLetter);
+
+        /**
+         * Передаёт все сохранённые запросы получателю и удаляет их из хранилища.
+         * Запросы, сохранённые во время выгрузки, остаются в хранилище до следующей выгрузки
+         *
+         * @param consumer получатель запросов
+         */
+        void drainTo(Consumer<DeadLetter> consumer);
+    }
+
+    /**
+     * Хранилище недоставленных запросов в файле NDJSON: одна строка JSON на запрос,
+     * тело запроса хранится вложенным объектом.
+     * При выгрузке файл переименовывается с суффиксом .redrive, новые запросы пишутся в новый файл.
+     * Файл .redrive, оставшийся после прерванной выгрузки, выгружается первым
+     */
+    public static final class FileDeadLetterSink implements DeadLetterSink {
+        private static final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+        private final Path file;
+        private final Path draining;
+        private final ReentrantLock drainLock = new ReentrantLock();
+        private BufferedWriter output;
+
+        /**
+         * @param file файл недоставленных запросов, создаётся при первой записи
+         */
+        public FileDeadLetterSink(@NotNull Path file) {
+            this.file = file.toAbsolutePath();
+            this.draining = this.file.resolveSibling(this.file.getFileName() + ".redrive");
+        }
+
+        @Override
+        public synchronized void accept(DeadLetter deadLetter) {
+            try {
+                ObjectNode line = mapper.createObjectNode();
+                line.set("body", mapper.readTree(deadLetter.body()));
+                line.set("attempts", mapper.valueToTree(deadLetter.attempts()));
+                line.put("lastStatus", deadLetter.lastStatus());
+                line.put("lastError", deadLetter.lastError());
+                if (output == null) {
+                    Files.createDirectories(file.getParent());
+                    output = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                output.write(mapper.writeValueAsString(line));
+                output.newLine();
+                output.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void drainTo(Consumer<DeadLetter> consumer) {
+            drainLock.lock();
+            try {
+                if (!Files.exists(draining)) {
+                    synchronized (this) {
+                        closeOutput();
+                        if (!Files.exists(file)) {
+                            return;
+                        }
+                        Files.move(file, draining);
+                    }
+                }
+                try (BufferedReader input = Files.newBufferedReader(draining, StandardCharsets.UTF_8)) {
+                    for (String line = input.readLine(); line != null; line = input.readLine()) {
+                        if (!line.isBlank()) {
+                            consumer.accept(parse(line));
+                        }
+                    }
+                }
+                Files.delete(draining);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        private static DeadLetter parse(String line) throws IOException {
+            JsonNode node = mapper.readTree(line);
+            List<DeliveryAttempt> attempts = mapper.convertValue(node.get("attempts"),
+                    mapper.getTypeFactory().constructCollectionType(List.class, DeliveryAttempt.class));
+            JsonNode lastError = node.get("lastError");
+            return new DeadLetter(mapper.writeValueAsString(node.get("body")), attempts, node.get("lastStatus").asInt(),
+                    lastError == null || lastError.isNull() ? null : lastError.asText());
+        }
+
+        private void closeOutput() throws IOException {
+            if (output != null) {
+                output.close();
+                output = null;
+            }
+        }
+    }
+
+    /**
+     * Запрос в очереди повторов
+     *
+     * @param requestRecord запись с запросом
+     * @param notBeforeNanos время, раньше которого повтор не отправляется
+     */
+    record RetryEntry(RequestRecord requestRecord, long notBeforeNanos) implements Delayed {
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(notBeforeNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(notBeforeNanos, ((RetryEntry) other).notBeforeNanos);
+        }
+    }
+
+    /**
+     * Политика повтора неудачных запросов: экспоненциальная задержка с полным случайным разбросом.
+     * Задержка перед n-й повторной попыткой выбирается равномерно от нуля до min(maxDelay, baseDelay * 2^(n-1)),
+     * поэтому повторы многих запросов после общего сбоя не приходят одновременно.
+     * Повторы проходят через тот же ограничитель частоты, что и новые запросы
+     *
+     * @param maxAttempts         наибольшее количество попыток, включая первую
+     * @param baseDelay           задержка перед первым повтором
+     * @param maxDelay            наибольшая задержка
+     * @param retriableStatuses   HTTP статусы, при которых запрос повторяется
+     * @param retriableExceptions ошибки отправки, при которых запрос повторяется, вместе с подклассами
+     */
+    public record RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, Set<Integer> retriableStatuses,
+                              Set<Class<? extends Throwable>> retriableExceptions) {
+
+        // Перегрузка сервера, ограничение частоты и временные ошибки шлюза
+        private static final Set<Integer> DEFAULT_RETRIABLE_STATUSES = Set.of(408, 425, 429, 500, 502, 503, 504);
+
+        public RetryPolicy {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+            }
+            if (baseDelay.isNegative() || maxDelay.compareTo(baseDelay) < 0) {
+                throw new IllegalArgumentException("invalid delays: base " + baseDelay + ", max " + maxDelay);
+            }
+            retriableStatuses = Set.copyOf(retriableStatuses);
+            retriableExceptions = Set.copyOf(retriableExceptions);
+        }
+
+        /**
+         * @return 5 попыток, задержка от 200 мс до 30 с, повтор при ошибках ввода-вывода и статусах 408, 425, 429, 5xx шлюза
+         */
+        public static RetryPolicy defaults() {
+            return exponential(5, Duration.ofMillis(200), Duration.ofSeconds(30));
+        }
+
+        /**
+         * @return политика без повторов
+         */
+        public static RetryPolicy none() {
+            return new RetryPolicy(1, Duration.ZERO, Duration.ZERO, Set.of(), Set.of());
+        }
+
+        /**
+         * Создаёт политику с повтором при ошибках ввода-вывода и статусах 408, 425, 429, 500, 502, 503, 504
+         *
+         * @param maxAttempts наибольшее количество попыток, включая первую
+         * @param baseDelay   задержка перед первым повтором
+         * @param maxDelay    наибольшая задержка
+         * @return политика повтора
+         */
+        public static RetryPolicy exponential(int maxAttempts, @NotNull Duration baseDelay, @NotNull Duration maxDelay) {
+            return new RetryPolicy(maxAttempts, baseDelay, maxDelay, DEFAULT_RETRIABLE_STATUSES, Set.of(IOException.class));
+        }
+
+        /**
+         * @param retriableStatuses HTTP статусы, при которых запрос повторяется
+         * @return политика с заданными статусами
+         */
+        public RetryPolicy withRetriableStatuses(@NotNull Set<Integer> retriableStatuses) {
+            return new RetryPolicy(maxAttempts, baseDelay, maxDelay, retriableStatuses, retriableExceptions);
+        }
+
+        /**
+         * @param retriableExceptions ошибки отправки, при которых запрос повторяется
+         * @return политика с заданными ошибками
+         */
+        public RetryPolicy withRetriableExceptions(@NotNull Set<Class<? extends Throwable>> retriableExceptions) {
+            return new RetryPolicy(maxAttempts, baseDelay, maxDelay, retriableStatuses, retriableExceptions);
+        }
+
+        boolean isRetriable(int statusCode) {
+            return retriableStatuses.contains(statusCode);
+        }
+
+        boolean isRetriable(Throwable error) {
+            for (Class<? extends Throwable> type : retriableExceptions) {
+                if (type.isInstance(error)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param retry номер повтора, начиная с 1
+         * @return случайная задержка перед повтором в наносекундах
+         */
+        long backoffNanos(int retry) {
+            int shift = Math.min(retry - 1, 62);
+            long ceiling = baseDelay.toNanos() <= maxDelay.toNanos() >> shift ? baseDelay.toNanos() << shift : maxDelay.toNanos();
+            return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+        }
+    }
+
+    /**
+     * Тело запроса в очереди
+     */
+    interface Payload {
+
+        /**
+         * @return длина тела запроса в байтах
+         */
+        int length();
+
+        /**
+         * @return копия тела запроса в куче
+         */
+        byte[] toByteArray();
+
+        /**
+         * @return источник тела HTTP запроса, для каждой отправки создаётся новый
+         */
+        HttpRequest.BodyPublisher bodyPublisher();
+
+        /**
+         * Освобождает память тела запроса после окончательной отправки. После вызова тело запроса не читается
+         */
+        default void release() {
+        }
+    }
+
+    /**
+     * Тело запроса в массиве байт в куче
+     *
+     * @param bytes JSON запроса в UTF-8
+     */
+    record HeapPayload(byte[] bytes) implements Payload {
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public byte[] toByteArray() {
+            return bytes;
+        }
+
+        @Override
+        public HttpRequest.BodyPublisher bodyPublisher() {
+            return HttpRequest.BodyPublishers.ofByteArray(bytes);
+        }
+    }
+
+    /**
+     * Арена тел запросов вне кучи. Тела запросов дописываются подряд в блоки direct памяти фиксированного размера,
+     * блок возвращается в пул, когда освобождены все размещённые в нём тела и в него больше не пишут.
+     * Тела больше половины блока размещаются в отдельном буфере
+     */
+    static final class PayloadArena {
+        private static final int SLAB_SIZE = 1 << 20;
+        private static final int MAX_FREE_SLABS = 16;
+
+        private final ArrayDeque<Slab> freeSlabs = new ArrayDeque<>();
+        private Slab current;
+
+        /**
+         * Копирует тело запроса в память вне кучи
+         *
+         * @param bytes JSON запроса в UTF-8
+         * @return тело запроса в арене
+         */
+        Payload allocate(byte[] bytes) {
+            if (bytes.length > SLAB_SIZE / 2) {
+                Slab slab = new Slab(ByteBuffer.allocateDirect(bytes.length), null);
+                slab.buffer.put(0, bytes);
+                return new ArenaPayload(slab, 0, bytes.length);
+            }
+            Slab slab;
+            int offset;
+            synchronized (this) {
+                if (current == null || SLAB_SIZE - current.position < bytes.length) {
+                    if (current != null) {
+                        // Арена перестаёт удерживать блок, он освободится вместе с последним телом запроса
+                        current.release();
+                    }
+                    Slab free = freeSlabs.poll();
+                    current = free != null ? free : new Slab(ByteBuffer.allocateDirect(SLAB_SIZE), this);
+                    current.position = 0;
+                    current.live.set(1);
+                }
+                slab = current;
+                offset = slab.position;
+                slab.position += bytes.length;
+                slab.live.incrementAndGet();
+            }
+            slab.buffer.put(offset, bytes);
+            return new ArenaPayload(slab, offset, bytes.length);
+        }
+
+        private synchronized void recycle(Slab slab) {
+            if (freeSlabs.size() < MAX_FREE_SLABS) {
+                freeSlabs.add(slab);
+            }
+        }
+
+        /**
+         * Блок direct памяти со счётчиком размещённых тел запросов, арена, пока пишет в блок, тоже учитывается в счётчике
+         */
+        static final class Slab {
+            private final ByteBuffer buffer;
+            private final PayloadArena arena;
+            private final AtomicInteger live = new AtomicInteger(1);
+            private int position;
+
+            Slab(ByteBuffer buffer, PayloadArena arena) {
+                this.buffer = buffer;
+                this.arena = arena;
+            }
+
+            void release() {
+                if (live.decrementAndGet() == 0 && arena != null) {
+                    arena.recycle(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Тело запроса в блоке арены вне кучи
+     *
+     * @param slab   блок арены
+     * @param offset смещение тела запроса в блоке
+     * @param length длина тела запроса
+     */
+    record ArenaPayload(PayloadArena.Slab slab, int offset, int length) implements Payload {
+
+        @Override
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            slab.buffer.get(offset, bytes);
+            return bytes;
+        }
+
+        @Override
+        public HttpRequest.BodyPublisher bodyPublisher() {
+            // HTTP клиент читает тело запроса прямо из памяти вне кучи, без копирования в массив
+            ByteBuffer body = slab.buffer.slice(offset, length).asReadOnlyBuffer();
+            return HttpRequest.BodyPublishers.fromPublisher(subscriber -> subscriber.onSubscribe(new Flow.Subscription() {
+                // Клиент подписывается заново при перенаправлении и повторной аутентификации,
+                // у каждой подписки своя позиция чтения
+                private final ByteBuffer remaining = body.duplicate();
+                private boolean done;
+
+                @Override
+                public synchronized void request(long n) {
+                    if (done) {
+                        return;
+                    }
+                    done = true;
+                    if (n <= 0) {
+                        subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                        return;
+                    }
+                    subscriber.onNext(remaining);
+                    subscriber.onComplete();
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    done = true;
+                }
+            }), length);
+        }
+
+        @Override
+        public void release() {
+            slab.release();
+        }
+    }
+
+    /**
+     * Положение записи в журнале
+     *
+     * @param segment сегмент журнала
+     * @param offset  смещение записи в сегменте
+     */
+    record JournalEntry(RequestJournal.Segment segment, int offset) {
+    }
+
+    /**
+     * Журнал запросов (write-ahead log) из сегментов фиксированного размера, отображённых в память.
+     * Запись: длина тела, CRC32 тела, состояние (ожидает / обработана), тело.
+     * При запуске сегменты читаются по порядку до первой неполной записи, ожидающие записи возвращаются для
+     * повторной отправки. Сегмент удаляется, когда все его записи обработаны и в него больше не пишут.
+     * Отметки об обработке сбрасываются на диск вместе с последующими записями, поэтому после сбоя
+     * часть уже отправленных запросов может быть отправлена повторно
+     */
+    static final class RequestJournal {
+        private static final int SEGMENT_SIZE = 64 << 20;
+        private static final int HEADER_SIZE = 9;
+        private static final int STATE_OFFSET = 8;
+        private static final byte PENDING = 1;
+        private static final byte ACKNOWLEDGED = 2;
+
+        private final Path directory;
+        private final JournalSyncMode syncMode;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition appended = lock.newCondition();
+        private final Condition flushed = lock.newCondition();
+        private final List<Segment> dirty = new ArrayList<>();
+        private final Thread flusher;
+        private Segment current;
+        private long appendedSequence;
+        private long durableSequence;
+        private boolean closed;
+
+        private RequestJournal(Path directory, JournalSyncMode syncMode, long nextSegment) throws IOException {
+            this.directory = directory;
+            this.syncMode = syncMode;
+            this.current = Segment.create(directory, nextSegment);
+            if (syncMode == JournalSyncMode.GROUP_COMMIT) {
+                this.flusher = new Thread(this::flushLoop, "crpt-journal-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            } else {
+                this.flusher = null;
+            }
+        }
+
+        /**
+         * Открывает журнал в каталоге и восстанавливает необработанные записи
+         *
+         * @param directory каталог журнала
+         * @param syncMode  режим сброса на диск
+         * @param replayed  список, в который добавляются необработанные записи
+         * @return журнал
+         * @throws IOException если журнал не прочитан или не создан
+         */
+        static RequestJournal open(Path directory, JournalSyncMode syncMode, List<RequestRecord> replayed) throws IOException {
+            Files.createDirectories(directory);
+            List<Path> paths;
+            try (Stream<Path> files = Files.list(directory)) {
+                paths = files.filter(path -> path.getFileName().toString().matches("journal-\\d+\\.wal")).sorted().toList();
+            }
+            long nextSegment = 0;
+            for (Path path : paths) {
+                Segment segment = Segment.recover(path, replayed);
+                nextSegment = Math.max(nextSegment, segment.number + 1);
+                segment.seal();
+            }
+            return new RequestJournal(directory, syncMode, nextSegment);
+        }
+
+        /**
+         * Записывает тело запроса в журнал и ожидает сброса записи на диск.
+         * Если ожидание прервано, запись отмечается как обработанная: вызывающий получает отказ,
+         * и запрос не должен повториться при следующем запуске
+         *
+         * @param requestBody тело запроса
+         * @return положение записи в журнале
+         * @throws InterruptedException если поток прерван во время ожидания сброса
+         */
+        JournalEntry append(byte[] requestBody) throws InterruptedException {
+            int size = HEADER_SIZE + requestBody.length;
+            if (size > SEGMENT_SIZE) {
+                throw new IllegalArgumentException("request body is larger than a journal segment: " + requestBody.length);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(requestBody);
+            long sequence;
+            JournalEntry entry;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("journal is closed");
+                }
+                if (current.position + size > SEGMENT_SIZE) {
+                    roll();
+                }
+                Segment segment = current;
+                int offset = segment.position;
+                segment.pending.incrementAndGet();
+                segment.buffer.put(offset + HEADER_SIZE, requestBody);
+                segment.buffer.putInt(offset + 4, (int) crc.getValue());
+                segment.buffer.put(offset + STATE_OFFSET, PENDING);
+                segment.buffer.putInt(offset, requestBody.length);
+                segment.position += size;
+                entry = new JournalEntry(segment, offset);
+                sequence = ++appendedSequence;
+                if (syncMode == JournalSyncMode.FSYNC_PER_RECORD) {
+                    segment.buffer.force(offset, size);
+                    durableSequence = sequence;
+                    return entry;
+                }
+                if (segment.dirtyFrom < 0) {
+                    segment.dirtyFrom = offset;
+                    dirty.add(segment);
+                }
+                appended.signal();
+                try {
+                    while (durableSequence < sequence) {
+                        flushed.await();
+                    }
+                } catch (InterruptedException e) {
+                    acknowledge(entry);
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+            return entry;
+        }
+
+        /**
+         * Отмечает запись как обработанную
+         *
+         * @param entry положение записи
+         */
+        void acknowledge(JournalEntry entry) {
+            Segment segment = entry.segment;
+            segment.buffer.put(entry.offset + STATE_OFFSET, ACKNOWLEDGED);
+            if (segment.pending.decrementAndGet() == 0 && segment.sealed) {
+                segment.delete();
+            }
+        }
+
+        /**
+         * Сбрасывает журнал на диск и останавливает поток сброса
+         */
+        void close() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                flushDirty();
+                current.buffer.force();
+                current.close();
+            } finally {
+                lock.unlock();
+            }
+            if (flusher != null) {
+                flusher.interrupt();
+            }
+        }
+
+        /**
+         * Сбрасывает на диск записи, накопившиеся с предыдущего сброса, пока журнал не закрыт
+         */
+        private void flushLoop() {
+            lock.lock();
+            try {
+                while (!closed) {
+                    while (durableSequence == appendedSequence && !closed) {
+                        appended.await();
+                    }
+                    long target = appendedSequence;
+                    List<Segment> segments = new ArrayList<>(dirty);
+                    int[] from = new int[segments.size()];
+                    int[] to = new int[segments.size()];
+                    for (int i = 0; i < segments.size(); i++) {
+                        from[i] = segments.get(i).dirtyFrom;
+                        to[i] = segments.get(i).position;
+                        segments.get(i).dirtyFrom = -1;
+                    }
+                    dirty.clear();
+                    // Сброс выполняется без блокировки, пока производители дописывают следующую группу
+                    lock.unlock();
+                    try {
+                        for (int i = 0; i < segments.size(); i++) {
+                            segments.get(i).buffer.force(from[i], to[i] - from[i]);
+                        }
+                    } finally {
+                        lock.lock();
+                    }
+                    durableSequence = target;
+                    flushed.signalAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void flushDirty() {
+            for (Segment segment : dirty) {
+                segment.buffer.force(segment.dirtyFrom, segment.position - segment.dirtyFrom);
+                segment.dirtyFrom = -1;
+            }
+            dirty.clear();
+            durableSequence = appendedSequence;
+            flushed.signalAll();
+        }
+
+        private void roll() {
+            Segment previous = current;
+            try {
+                current = Segment.create(directory, previous.number + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            previous.seal();
+        }
+
+        /**
+         * Сегмент журнала
+         */
+        static final class Segment {
+            private final long number;
+            private final Path path;
+            private final FileChannel channel;
+            private final MappedByteBuffer buffer;
+            private final AtomicInteger pending = new AtomicInteger();
+            private volatile boolean sealed;
+            private int position;
+            private int dirtyFrom = -1;
+
+            private Segment(long number, Path path) throws IOException {
+                this.number = number;
+                this.path = path;
+                this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+
+            static Segment create(Path directory, long number) throws IOException {
+                return new Segment(number, directory.resolve(String.format("journal-%020d.wal", number)));
+            }
+
+            /**
+             * Читает записи сегмента до первой пустой или повреждённой записи
+             */
+            static Segment recover(Path path, List<RequestRecord> replayed) throws IOException {
+                String name = path.getFileName().toString();
+                Segment segment = new Segment(Long.parseLong(name.substring(8, name.length() - 4)), path);
+                MappedByteBuffer buffer = segment.buffer;
+                int offset = 0;
+                while (offset + HEADER_SIZE <= SEGMENT_SIZE) {
+                    int length = buffer.getInt(offset);
+                    if (length <= 0 || offset + HEADER_SIZE + length > SEGMENT_SIZE) {
+                        break;
+                    }
+                    byte[] requestBody = new byte[length];
+                    buffer.get(offset + HEADER_SIZE, requestBody);
+                    CRC32 crc = new CRC32();
+                    crc.update(requestBody);
+                    if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                        break;
+                    }
+                    if (buffer.get(offset + STATE_OFFSET) == PENDING) {
+                        segment.pending.incrementAndGet();
+                        replayed.add(new RequestRecord(null, new HeapPayload(requestBody), null, null, new JournalEntry(segment, offset)));
+                    }
+                    offset += HEADER_SIZE + length;
+                }
+                segment.position = offset;
+                return segment;
+            }
+
+            /**
+             * Закрывает сегмент для записи, удаляет его, если все записи обработаны
+             */
+            void seal() {
+                sealed = true;
+                if (pending.get() == 0) {
+                    delete();
+                }
+            }
+
+            void close() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            void delete() {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Список не отправленных запросов. DTO, сохранённые при добавлении, возвращаются без копирования,
+     * DTO записей, прошедших через диск, разбираются из JSON при первом обращении
+     */
+    static class UnsentRequests extends AbstractList<RequestBodyDTO> implements RandomAccess {
+        private static final ObjectReader reader = new ObjectMapper().registerModule(new JavaTimeModule()).readerFor(RequestBodyDTO.class);
+
+        private final List<RequestRecord> records;
+        private final RequestBodyDTO[] materialized;
+
+        UnsentRequests(List<RequestRecord> records) {
+            this.records = records;
+            this.materialized = new RequestBodyDTO[records.size()];
+        }
+
+        @Override
+        public RequestBodyDTO get(int index) {
+            RequestBodyDTO requestBodyDTO = materialized[index];
+            if (requestBodyDTO == null) {
+                RequestRecord requestRecord = records.get(index);
+                requestBodyDTO = requestRecord.requestBodyDTO != null ? requestRecord.requestBodyDTO : parse(requestRecord.payload.toByteArray());
+                materialized[index] = requestBodyDTO;
+            }
+            return requestBodyDTO;
+        }
+
+        @Override
+        public int size() {
+            return records.size();
+        }
+
+        static RequestBodyDTO parse(byte[] requestBody) {
+            try {
+                return reader.readValue(requestBody);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     /**
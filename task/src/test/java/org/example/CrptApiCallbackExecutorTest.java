@@ -0,0 +1,150 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Исполнитель callback: политика BLOCK и завершение вытесненных запросов
+ */
+class CrptApiCallbackExecutorTest {
+
+    private static final String PATH = "/api/v3/lk/documents/create";
+
+    @Test
+    void blockPolicyWaitsForPlaceAndRunsTasksOnPoolThreads() throws Exception {
+        CrptApi.CallbackExecutor executor = new CrptApi.CallbackExecutor(1, 1, CrptApi.CallbackSaturationPolicy.BLOCK,
+                new CrptApi.LatencyHistogram());
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> threads = new CopyOnWriteArrayList<>();
+        executor.execute(() -> {
+            await(release);
+            threads.add(Thread.currentThread().getName());
+        }, 1, true);
+        executor.execute(() -> threads.add(Thread.currentThread().getName()), 2, true);
+
+        // Поток пула занят, очередь заполнена: третья задача ожидает места, а не выполняется в вызывающем потоке
+        Thread producer = new Thread(() -> executor.execute(() -> threads.add(Thread.currentThread().getName()), 3, true));
+        producer.start();
+        producer.join(300);
+        assertTrue(producer.isAlive());
+        assertTrue(threads.isEmpty());
+
+        release.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        executor.shutdown();
+        waitFor(() -> threads.size() == 3);
+        for (String thread : threads) {
+            assertTrue(thread.startsWith("crpt-callback"), thread);
+        }
+    }
+
+    @Test
+    void blockPolicyRunsEveryTaskOnceWhenShutDownWhileWaiting() throws Exception {
+        CrptApi.CallbackExecutor executor = new CrptApi.CallbackExecutor(1, 1, CrptApi.CallbackSaturationPolicy.BLOCK,
+                new CrptApi.LatencyHistogram());
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        executor.execute(() -> {
+            await(release);
+            runs.incrementAndGet();
+        }, 1, true);
+        executor.execute(runs::incrementAndGet, 2, true);
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread producer = new Thread(() -> executor.execute(runs::incrementAndGet, 3, true));
+            producer.start();
+            producers.add(producer);
+        }
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        executor.shutdown();
+        release.countDown();
+        for (Thread producer : producers) {
+            producer.join(5000);
+        }
+        waitFor(() -> runs.get() == 6);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(6, runs.get());
+    }
+
+    @Test
+    void evictedRequestsAreCompletedOnCallbackThreads() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PATH, exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.readAllBytes();
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            CrptApi api = CrptApi.builder()
+                    // Одно разрешение в час: после первого запроса диспетчер ждёт, очередь заполняется
+                    .requestLimit(1, TimeUnit.HOURS)
+                    .capacity(1)
+                    .overflowPolicy(CrptApi.OverflowPolicy.DROP_OLDEST)
+                    .callbackExecutor(1, 16, CrptApi.CallbackSaturationPolicy.BLOCK)
+                    .requestUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + PATH))
+                    .logLevel(CrptApi.LogLevel.OFF)
+                    .build();
+            List<String> evictedOn = new CopyOnWriteArrayList<>();
+            String producer = Thread.currentThread().getName();
+            List<CompletableFuture<HttpResponse<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                CompletableFuture<HttpResponse<String>> future = api.addRequestAsync(new CrptApi.RequestBodyDTO());
+                // Продолжение добавлено до вытеснения, поэтому выполняется в потоке, завершившем future
+                future.whenComplete((response, error) -> {
+                    if (error instanceof RejectedExecutionException) {
+                        evictedOn.add(Thread.currentThread().getName());
+                    }
+                });
+                futures.add(future);
+            }
+
+            waitFor(() -> evictedOn.size() >= 3);
+            for (String thread : evictedOn) {
+                assertFalse(thread.equals(producer), "evicted future completed on the producer thread");
+                assertTrue(thread.startsWith("crpt-callback"), thread);
+            }
+            api.shutdownService();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - deadline < 0, "condition not met in time");
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
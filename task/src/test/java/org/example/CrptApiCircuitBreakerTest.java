@@ -0,0 +1,107 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Автоматический выключатель: переходы состояний и отдельное состояние у каждого сервиса
+ */
+class CrptApiCircuitBreakerTest {
+
+    private static final Duration OPEN_DURATION = Duration.ofMillis(50);
+
+    @Test
+    void opensOnFailuresAndClosesAfterSuccessfulProbe() throws InterruptedException {
+        CrptApi.CircuitBreaker breaker = new CrptApi.CircuitBreaker(0.5, 4, OPEN_DURATION);
+        long sent = System.nanoTime();
+
+        assertFalse(breaker.awaitPermission());
+        assertNull(breaker.onResult(sent, true));
+        assertNull(breaker.onResult(sent, true));
+        assertNull(breaker.onResult(sent, false));
+        assertEquals(CrptApi.CircuitState.OPEN, breaker.onResult(sent, false));
+        assertEquals(CrptApi.CircuitState.OPEN, breaker.state());
+
+        // Ожидает время размыкания и пропускает один пробный запрос
+        long before = System.nanoTime();
+        assertTrue(breaker.awaitPermission());
+        assertTrue(System.nanoTime() - before >= OPEN_DURATION.toNanos() / 2);
+        assertEquals(CrptApi.CircuitState.HALF_OPEN, breaker.state());
+
+        // Результат запроса, отправленного до перехода в HALF_OPEN, не учитывается
+        assertNull(breaker.onResult(sent, false));
+        assertEquals(CrptApi.CircuitState.CLOSED, breaker.onResult(System.nanoTime(), true));
+        assertFalse(breaker.awaitPermission());
+    }
+
+    @Test
+    void failedProbeOpensAgain() throws InterruptedException {
+        CrptApi.CircuitBreaker breaker = new CrptApi.CircuitBreaker(1, 1, OPEN_DURATION);
+
+        assertEquals(CrptApi.CircuitState.OPEN, breaker.onResult(System.nanoTime(), false));
+        assertTrue(breaker.awaitPermission());
+        assertEquals(CrptApi.CircuitState.OPEN, breaker.onResult(System.nanoTime(), false));
+    }
+
+    @Test
+    void cancelledProbeLetsNextRequestProbe() throws Exception {
+        CrptApi.CircuitBreaker breaker = new CrptApi.CircuitBreaker(1, 1, Duration.ZERO);
+        breaker.onResult(System.nanoTime(), false);
+        assertTrue(breaker.awaitPermission());
+
+        CompletableFuture<Boolean> next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return breaker.awaitPermission();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertFalse(next.isDone());
+        breaker.cancelProbe();
+        assertTrue(next.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void servicesBuiltFromOneBuilderHaveSeparateBreakers() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.readAllBytes();
+            }
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            CrptApi.Builder builder = CrptApi.builder()
+                    .requestLimit(100, TimeUnit.SECONDS)
+                    .requestUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/"))
+                    .retryPolicy(CrptApi.RetryPolicy.none())
+                    .circuitBreaker(1, 1, Duration.ofMinutes(1))
+                    .logLevel(CrptApi.LogLevel.OFF);
+            CrptApi failing = builder.build();
+            CrptApi other = builder.build();
+
+            failing.addRequestAsync(new CrptApi.RequestBodyDTO()).get(10, TimeUnit.SECONDS);
+            assertEquals(CrptApi.CircuitState.OPEN, failing.circuitState());
+            assertEquals(CrptApi.CircuitState.CLOSED, other.circuitState());
+            failing.shutdownService();
+            other.shutdownService();
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Диспетчер: ошибка при обработке одной записи завершает только её, остальные запросы отправляются
+ */
+class CrptApiDispatcherTest {
+
+    private static final String PATH = "/api/v3/lk/documents/create";
+
+    @TempDir
+    Path journalDirectory;
+
+    private HttpServer server;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PATH, exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.readAllBytes();
+            }
+            hits.incrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void failingRecordIsAbandonedAndDispatchContinues() throws Exception {
+        List<CrptApi.DeadLetter> deadLetters = new CopyOnWriteArrayList<>();
+        CrptApi api = newApiBuilder()
+                .rateLimiter(new FailingOnceRateLimiter())
+                // Одно место среди выполняемых запросов: если место не освобождено, следующие запросы не отправятся
+                .boundedPool(1)
+                .payloadStorage(CrptApi.PayloadStorage.OFF_HEAP)
+                .deadLetterSink(new ListDeadLetterSink(deadLetters))
+                .build();
+        CompletableFuture<HttpResponse<String>> failing = api.addRequestAsync(new CrptApi.RequestBodyDTO());
+        CompletableFuture<HttpResponse<String>> second = api.addRequestAsync(new CrptApi.RequestBodyDTO());
+        CompletableFuture<HttpResponse<String>> third = api.addRequestAsync(new CrptApi.RequestBodyDTO());
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> failing.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, error.getCause());
+        assertEquals(200, second.get(10, TimeUnit.SECONDS).statusCode());
+        assertEquals(200, third.get(10, TimeUnit.SECONDS).statusCode());
+        assertTrue(api.shutdownService().isEmpty());
+        assertEquals(2, hits.get());
+        assertEquals(1, deadLetters.size());
+        assertEquals(-1, deadLetters.get(0).lastStatus());
+
+        // Запись завершена окончательно и не повторяется при следующем запуске
+        CrptApi restarted = newApiBuilder().build();
+        TimeUnit.MILLISECONDS.sleep(500);
+        assertTrue(restarted.shutdownService().isEmpty());
+        assertEquals(2, hits.get());
+    }
+
+    private CrptApi.Builder newApiBuilder() {
+        return CrptApi.builder()
+                .requestLimit(100, TimeUnit.SECONDS)
+                .requestUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + PATH))
+                .journal(journalDirectory, CrptApi.JournalSyncMode.GROUP_COMMIT)
+                .logLevel(CrptApi.LogLevel.OFF);
+    }
+
+    /**
+     * Ограничитель без ограничения, первый вызов которого завершается исключением
+     */
+    private static final class FailingOnceRateLimiter implements CrptApi.RateLimiter {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public long nanosUntilPermit(long nowNanos) {
+            if (calls.getAndIncrement() == 0) {
+                throw new IllegalStateException("limiter failure");
+            }
+            return 0;
+        }
+
+        @Override
+        public void acquire(long nowNanos) {
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private record ListDeadLetterSink(List<CrptApi.DeadLetter> deadLetters) implements CrptApi.DeadLetterSink {
+
+        @Override
+        public void accept(CrptApi.DeadLetter deadLetter) {
+            deadLetters.add(deadLetter);
+        }
+
+        @Override
+        public void drainTo(Consumer<CrptApi.DeadLetter> consumer) {
+            deadLetters.forEach(consumer);
+            deadLetters.clear();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Взвешенное справедливое обслуживание участников (deficit round robin)
+ */
+class CrptApiFairQueueTest {
+
+    @Test
+    void tenantsAreServedInProportionToWeights() throws Exception {
+        CrptApi.FairRequestQueue queue = new CrptApi.FairRequestQueue(1000, Map.of("a", 3));
+        // Участник a ставит все запросы первым, но не вытесняет остальных из обхода
+        for (int i = 0; i < 30; i++) {
+            queue.offer(record("a", i));
+        }
+        for (int i = 0; i < 10; i++) {
+            queue.offer(record("b", i));
+            queue.offer(record("c", i));
+        }
+
+        Map<String, Integer> served = new HashMap<>();
+        for (int i = 0; i < 25; i++) {
+            served.merge(queue.poll(0).tenant(), 1, Integer::sum);
+        }
+        assertEquals(Map.of("a", 15, "b", 5, "c", 5), served);
+    }
+
+    @Test
+    void lightTenantIsNotStuckBehindHeavyBacklog() throws Exception {
+        CrptApi.FairRequestQueue queue = new CrptApi.FairRequestQueue(1000, Map.of());
+        for (int i = 0; i < 500; i++) {
+            queue.offer(record("heavy", i));
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.offer(record("light", i));
+        }
+
+        int light = 0;
+        for (int i = 0; i < 10; i++) {
+            CrptApi.RequestRecord requestRecord = queue.poll(0);
+            if ("light".equals(requestRecord.tenant())) {
+                // Внутри участника порядок поступления сохраняется
+                assertEquals(light++, requestRecord.number());
+            }
+        }
+        assertEquals(5, light);
+    }
+
+    @Test
+    void everyRecordIsReturnedOnceInTenantOrder() throws Exception {
+        CrptApi.FairRequestQueue queue = new CrptApi.FairRequestQueue(100, Map.of("b", 2));
+        for (int i = 0; i < 20; i++) {
+            queue.offer(record(i % 3 == 0 ? "a" : "b", i));
+        }
+        List<CrptApi.RequestRecord> polled = new ArrayList<>();
+        for (CrptApi.RequestRecord requestRecord = queue.poll(0); requestRecord != null; requestRecord = queue.poll(0)) {
+            polled.add(requestRecord);
+        }
+
+        assertEquals(20, polled.size());
+        Map<String, Integer> last = new HashMap<>();
+        for (CrptApi.RequestRecord requestRecord : polled) {
+            Integer previous = last.put(requestRecord.tenant(), requestRecord.number());
+            assertTrue(previous == null || previous < requestRecord.number());
+        }
+        assertNull(queue.poll(0));
+    }
+
+    @Test
+    void pollOldestEvictsFromLongestTenant() {
+        CrptApi.FairRequestQueue queue = new CrptApi.FairRequestQueue(10, Map.of());
+        queue.offer(record("a", 0));
+        for (int i = 1; i <= 3; i++) {
+            queue.offer(record("b", i));
+        }
+
+        CrptApi.RequestRecord dropped = queue.pollOldest();
+        assertEquals("b", dropped.tenant());
+        assertEquals(1, dropped.number());
+    }
+
+    private static CrptApi.RequestRecord record(String tenant, int number) {
+        return new CrptApi.RequestRecord(null, new CrptApi.HeapPayload(new byte[0]), null, null, null)
+                .withTenant(tenant)
+                .withNumber(number);
+    }
+}
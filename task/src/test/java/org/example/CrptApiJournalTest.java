@@ -0,0 +1,105 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Журнал запросов: запросы с окончательным результатом не повторяются при следующем запуске
+ */
+class CrptApiJournalTest {
+
+    private static final String PATH = "/api/v3/lk/documents/create";
+
+    @TempDir
+    Path journalDirectory;
+
+    private HttpServer server;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PATH, exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.readAllBytes();
+            }
+            hits.incrementAndGet();
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void rejectedRequestsAreNotReplayedAfterRestart() throws Exception {
+        CrptApi api = newApi();
+        List<CompletableFuture<?>> responses = List.of(
+                api.addRequestAsync(new CrptApi.RequestBodyDTO()),
+                api.addRequestAsync(new CrptApi.RequestBodyDTO()),
+                api.addRequestAsync(new CrptApi.RequestBodyDTO()));
+        for (CompletableFuture<?> response : responses) {
+            response.get(10, TimeUnit.SECONDS);
+        }
+        assertTrue(api.shutdownService().isEmpty());
+        assertEquals(3, hits.get());
+
+        for (int restart = 0; restart < 2; restart++) {
+            CrptApi restarted = newApi();
+            // Восстановленные запросы ставятся в очередь в конструкторе и отправились бы сразу
+            TimeUnit.MILLISECONDS.sleep(500);
+            assertTrue(restarted.shutdownService().isEmpty());
+            assertEquals(3, hits.get());
+        }
+    }
+
+    @Test
+    void requestsRejectedBeforeJournalingAreNotReplayed() throws Exception {
+        CrptApi api = newApiBuilder()
+                .fairQueuing(requestBodyDTO -> {
+                    throw new IllegalStateException("no tenant");
+                })
+                .build();
+        CompletableFuture<?> response = api.addRequestAsync(new CrptApi.RequestBodyDTO());
+        assertTrue(response.isCompletedExceptionally());
+        assertTrue(api.shutdownService().isEmpty());
+
+        CrptApi restarted = newApi();
+        TimeUnit.MILLISECONDS.sleep(500);
+        assertTrue(restarted.shutdownService().isEmpty());
+        assertEquals(0, hits.get());
+    }
+
+    private CrptApi newApi() {
+        return newApiBuilder().build();
+    }
+
+    private CrptApi.Builder newApiBuilder() {
+        return CrptApi.builder()
+                .requestLimit(100, TimeUnit.SECONDS)
+                .requestUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + PATH))
+                .journal(journalDirectory, CrptApi.JournalSyncMode.GROUP_COMMIT)
+                .logLevel(CrptApi.LogLevel.OFF);
+    }
+}
@@ -0,0 +1,69 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Интервалы гистограммы задержек: 16 линейных интервалов на каждую степень двойки
+ */
+class CrptApiLatencyHistogramTest {
+
+    @Test
+    void smallValuesHaveExactBuckets() {
+        for (int value = 0; value < 32; value++) {
+            assertEquals(value, CrptApi.LatencyHistogram.index(value));
+            assertEquals(value, CrptApi.LatencyHistogram.upperBound(value));
+        }
+    }
+
+    @Test
+    void bucketsAreContiguousAndCoverAllValues() {
+        assertEquals(0, CrptApi.LatencyHistogram.index(0));
+        assertEquals(CrptApi.LatencyHistogram.BUCKETS - 1, CrptApi.LatencyHistogram.index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, CrptApi.LatencyHistogram.upperBound(CrptApi.LatencyHistogram.BUCKETS - 1));
+        for (int index = 1; index < CrptApi.LatencyHistogram.BUCKETS; index++) {
+            long lower = CrptApi.LatencyHistogram.upperBound(index - 1) + 1;
+            long upper = CrptApi.LatencyHistogram.upperBound(index);
+            assertTrue(lower <= upper, "bucket " + index + " is empty");
+            // Обе границы интервала попадают в сам интервал
+            assertEquals(index, CrptApi.LatencyHistogram.index(lower), "lower bound of bucket " + index);
+            assertEquals(index, CrptApi.LatencyHistogram.index(upper), "upper bound of bucket " + index);
+        }
+    }
+
+    @Test
+    void bucketWidthIsWithinOneSixteenthOfValue() {
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong(Long.MAX_VALUE) >>> random.nextInt(63);
+            int index = CrptApi.LatencyHistogram.index(value);
+            long upper = CrptApi.LatencyHistogram.upperBound(index);
+            long lower = index == 0 ? 0 : CrptApi.LatencyHistogram.upperBound(index - 1) + 1;
+            assertTrue(lower <= value && value <= upper, value + " is outside bucket " + index);
+            assertTrue(upper - lower <= value / 16, value + " falls into a bucket wider than 1/16");
+        }
+    }
+
+    @Test
+    void percentilesAreReportedByBucketUpperBoundCappedByMax() {
+        CrptApi.LatencyHistogram histogram = new CrptApi.LatencyHistogram();
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000L);
+        }
+        histogram.record(-5);
+        CrptApi.HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(1001, snapshot.count());
+        assertEquals(Duration.ofMillis(1), snapshot.max());
+        assertEquals(Duration.ofMillis(1), snapshot.p999());
+        long p50 = snapshot.p50().toNanos();
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 + 500_000 / 16, "p50 " + p50);
+        long p90 = snapshot.p90().toNanos();
+        assertTrue(p90 >= 900_000 && p90 <= 900_000 + 900_000 / 16, "p90 " + p90);
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Тела запросов вне кучи
+ */
+class CrptApiPayloadTest {
+
+    @Test
+    void arenaPayloadPublishesFullBodyToEverySubscriber() {
+        byte[] bytes = "{\"doc_id\":\"1\"}".getBytes(StandardCharsets.UTF_8);
+        CrptApi.Payload payload = new CrptApi.PayloadArena().allocate(bytes);
+        HttpRequest.BodyPublisher publisher = payload.bodyPublisher();
+
+        assertEquals(bytes.length, publisher.contentLength());
+        // Клиент подписывается повторно при перенаправлении 307/308 и повторной аутентификации
+        assertArrayEquals(bytes, read(publisher));
+        assertArrayEquals(bytes, read(publisher));
+        assertArrayEquals(bytes, payload.toByteArray());
+    }
+
+    private static byte[] read(HttpRequest.BodyPublisher publisher) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                out.writeBytes(chunk);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throw new AssertionError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        return out.toByteArray();
+    }
+}
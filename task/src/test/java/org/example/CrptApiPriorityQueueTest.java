@@ -0,0 +1,102 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Очередь с приоритетами: EDF внутри приоритета и гарантированная доля BACKFILL
+ */
+class CrptApiPriorityQueueTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void earliestDeadlineFirstWithinPriorityAndFifoOnTies() throws Exception {
+        CrptApi.PriorityRequestQueue queue = new CrptApi.PriorityRequestQueue(100, 0);
+        long base = System.nanoTime();
+        queue.offer(record(CrptApi.Priority.NORMAL, base + 30 * SECOND, 0));
+        queue.offer(record(CrptApi.Priority.NORMAL, base + 10 * SECOND, 1));
+        queue.offer(record(CrptApi.Priority.NORMAL, CrptApi.NO_DEADLINE, 2));
+        queue.offer(record(CrptApi.Priority.NORMAL, base + 20 * SECOND, 3));
+        queue.offer(record(CrptApi.Priority.NORMAL, base + 10 * SECOND, 4));
+
+        assertEquals(List.of(1, 4, 3, 0, 2), pollAll(queue));
+    }
+
+    @Test
+    void higherPriorityIsServedFirstRegardlessOfDeadline() throws Exception {
+        CrptApi.PriorityRequestQueue queue = new CrptApi.PriorityRequestQueue(100, 0);
+        long base = System.nanoTime();
+        queue.offer(record(CrptApi.Priority.BACKFILL, base + SECOND, 0));
+        queue.offer(record(CrptApi.Priority.NORMAL, base + SECOND, 1));
+        queue.offer(record(CrptApi.Priority.URGENT, CrptApi.NO_DEADLINE, 2));
+
+        assertEquals(List.of(2, 1, 0), pollAll(queue));
+    }
+
+    @Test
+    void backfillGetsItsMinimumShareUnderLoad() throws Exception {
+        CrptApi.PriorityRequestQueue queue = new CrptApi.PriorityRequestQueue(100, 0.25);
+        for (int i = 0; i < 20; i++) {
+            queue.offer(record(CrptApi.Priority.NORMAL, CrptApi.NO_DEADLINE, i));
+        }
+        for (int i = 100; i < 110; i++) {
+            queue.offer(record(CrptApi.Priority.BACKFILL, CrptApi.NO_DEADLINE, i));
+        }
+
+        List<Integer> order = pollAll(queue);
+        // Каждый четвёртый запрос берётся из BACKFILL, пока в обеих очередях есть записи
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i % 4 == 3, order.get(i) >= 100, "position " + i);
+        }
+        assertEquals(30, order.size());
+    }
+
+    @Test
+    void backfillShareDoesNotAccumulateWhileBackfillIsEmpty() throws Exception {
+        CrptApi.PriorityRequestQueue queue = new CrptApi.PriorityRequestQueue(100, 0.25);
+        for (int i = 0; i < 8; i++) {
+            queue.offer(record(CrptApi.Priority.NORMAL, CrptApi.NO_DEADLINE, i));
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7), pollAll(queue));
+
+        for (int i = 0; i < 4; i++) {
+            queue.offer(record(CrptApi.Priority.NORMAL, CrptApi.NO_DEADLINE, i));
+        }
+        for (int i = 100; i < 104; i++) {
+            queue.offer(record(CrptApi.Priority.BACKFILL, CrptApi.NO_DEADLINE, i));
+        }
+        assertEquals(List.of(0, 1, 2, 100, 3, 101, 102, 103), pollAll(queue));
+    }
+
+    @Test
+    void pollOldestEvictsLatestDeadlineOfLowestPriority() {
+        CrptApi.PriorityRequestQueue queue = new CrptApi.PriorityRequestQueue(100, 0);
+        long base = System.nanoTime();
+        queue.offer(record(CrptApi.Priority.URGENT, CrptApi.NO_DEADLINE, 0));
+        queue.offer(record(CrptApi.Priority.NORMAL, base + 5 * SECOND, 1));
+        queue.offer(record(CrptApi.Priority.NORMAL, base + 50 * SECOND, 2));
+        queue.offer(record(CrptApi.Priority.NORMAL, base + 20 * SECOND, 3));
+
+        assertEquals(2, queue.pollOldest().number());
+        assertEquals(3, queue.pollOldest().number());
+    }
+
+    private static List<Integer> pollAll(CrptApi.PriorityRequestQueue queue) throws InterruptedException {
+        List<Integer> numbers = new ArrayList<>();
+        for (CrptApi.RequestRecord requestRecord = queue.poll(0); requestRecord != null; requestRecord = queue.poll(0)) {
+            numbers.add(requestRecord.number());
+        }
+        return numbers;
+    }
+
+    private static CrptApi.RequestRecord record(CrptApi.Priority priority, long deadlineNanos, int number) {
+        return new CrptApi.RequestRecord(null, new CrptApi.HeapPayload(new byte[0]), null, null, null, priority, null,
+                deadlineNanos, List.of(), System.nanoTime(), number);
+    }
+}
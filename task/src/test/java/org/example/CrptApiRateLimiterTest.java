@@ -0,0 +1,170 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ограничители частоты запросов на виртуальном времени: время задаётся тестом, а не берётся из часов
+ */
+class CrptApiRateLimiterTest {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int LIMIT = 100;
+
+    @Test
+    void tokenBucketPacesPermitsEvenlyByDefault() {
+        long start = System.nanoTime();
+        CrptApi.RateLimiter limiter = CrptApi.LimiterStrategy.TOKEN_BUCKET.create(LIMIT, WINDOW_NANOS, 0);
+        long[] grants = acquireGreedily(limiter, start, start + 3 * WINDOW_NANOS);
+
+        assertEquals(0, grants[0] - start);
+        assertTrue(worstWindow(grants, WINDOW_NANOS) <= LIMIT + 1);
+        long interval = WINDOW_NANOS / LIMIT;
+        for (int i = 1; i < grants.length; i++) {
+            assertTrue(grants[i] - grants[i - 1] >= interval - 1, "permits " + (i - 1) + " and " + i + " are too close");
+        }
+    }
+
+    @Test
+    void tokenBucketDoesNotBurstAfterIdleByDefault() {
+        long start = System.nanoTime();
+        CrptApi.RateLimiter limiter = CrptApi.LimiterStrategy.TOKEN_BUCKET.create(LIMIT, WINDOW_NANOS, 0);
+        long afterIdle = start + 10 * WINDOW_NANOS;
+
+        assertEquals(1, limiter.availablePermits(afterIdle));
+        limiter.acquire(afterIdle);
+        assertTrue(limiter.nanosUntilPermit(afterIdle) > 0);
+    }
+
+    @Test
+    void tokenBucketBurstIsExplicitOptIn() {
+        long start = System.nanoTime();
+        CrptApi.RateLimiter limiter = CrptApi.LimiterStrategy.TOKEN_BUCKET.create(LIMIT, WINDOW_NANOS, 10);
+        long afterIdle = start + WINDOW_NANOS;
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.nanosUntilPermit(afterIdle));
+            limiter.acquire(afterIdle);
+        }
+        assertTrue(limiter.nanosUntilPermit(afterIdle) > 0);
+    }
+
+    @Test
+    void slidingWindowsAndGcraNeverExceedLimitInAnyWindow() {
+        for (CrptApi.LimiterStrategy strategy : List.of(CrptApi.LimiterStrategy.SLIDING_WINDOW_LOG,
+                CrptApi.LimiterStrategy.SLIDING_WINDOW_COUNTER, CrptApi.LimiterStrategy.GCRA)) {
+            long start = System.nanoTime();
+            CrptApi.RateLimiter limiter = strategy.create(LIMIT, WINDOW_NANOS, 0);
+            long[] grants = acquireGreedily(limiter, start, start + 5 * WINDOW_NANOS);
+
+            assertTrue(worstWindow(grants, WINDOW_NANOS) <= LIMIT, strategy + " exceeded the limit");
+            // Ограничитель не должен отдавать заметно меньше лимита
+            assertTrue(grants.length >= 4 * LIMIT, strategy + " granted only " + grants.length);
+        }
+    }
+
+    @Test
+    void slidingWindowsAndGcraHoldLimitAcrossIdlePauses() {
+        for (CrptApi.LimiterStrategy strategy : List.of(CrptApi.LimiterStrategy.SLIDING_WINDOW_LOG,
+                CrptApi.LimiterStrategy.SLIDING_WINDOW_COUNTER, CrptApi.LimiterStrategy.GCRA)) {
+            long start = System.nanoTime();
+            CrptApi.RateLimiter limiter = strategy.create(LIMIT, WINDOW_NANOS, 0);
+            // Паузы разной длины сдвигают начало нагрузки относительно границ корзин и окон
+            long[] pauses = {WINDOW_NANOS / 3, WINDOW_NANOS / 7 * 9, WINDOW_NANOS / 2, 2 * WINDOW_NANOS};
+            long now = start;
+            long[] grants = new long[0];
+            for (long pause : pauses) {
+                now += pause;
+                long[] burst = acquireGreedily(limiter, now, now + WINDOW_NANOS / 2 * 3);
+                grants = concat(grants, burst);
+                now += WINDOW_NANOS / 2 * 3;
+            }
+
+            assertTrue(worstWindow(grants, WINDOW_NANOS) <= LIMIT, strategy + " exceeded the limit");
+        }
+    }
+
+    @Test
+    void slidingWindowLogAllowsFullWindowAtOnceThenWaitsForOldestPermit() {
+        long start = System.nanoTime();
+        CrptApi.RateLimiter limiter = CrptApi.LimiterStrategy.SLIDING_WINDOW_LOG.create(LIMIT, WINDOW_NANOS, 0);
+        for (int i = 0; i < LIMIT; i++) {
+            assertEquals(0, limiter.nanosUntilPermit(start));
+            limiter.acquire(start);
+        }
+
+        assertEquals(WINDOW_NANOS, limiter.nanosUntilPermit(start));
+        assertEquals(0, limiter.nanosUntilPermit(start + WINDOW_NANOS));
+    }
+
+    @Test
+    void gcraSpacesPermitsAndAllowsConfiguredBurst() {
+        long start = System.nanoTime();
+        long interval = WINDOW_NANOS / LIMIT;
+        CrptApi.RateLimiter paced = CrptApi.LimiterStrategy.GCRA.create(LIMIT, WINDOW_NANOS, 0);
+        long[] grants = acquireGreedily(paced, start, start + WINDOW_NANOS);
+        for (int i = 1; i < grants.length; i++) {
+            assertTrue(grants[i] - grants[i - 1] >= interval - 1, "permits " + (i - 1) + " and " + i + " are too close");
+        }
+
+        CrptApi.RateLimiter bursty = CrptApi.LimiterStrategy.GCRA.create(LIMIT, WINDOW_NANOS, 10);
+        long afterIdle = start + WINDOW_NANOS;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bursty.nanosUntilPermit(afterIdle), "permit " + i);
+            bursty.acquire(afterIdle);
+        }
+        assertTrue(bursty.nanosUntilPermit(afterIdle) > 0);
+    }
+
+    /**
+     * Занимает разрешения, как только они доступны, продвигая виртуальное время на время ожидания
+     *
+     * @return моменты выдачи разрешений
+     */
+    static long[] acquireGreedily(CrptApi.RateLimiter limiter, long start, long end) {
+        long[] grants = new long[16];
+        int size = 0;
+        long now = start;
+        while (now - end < 0) {
+            long wait = limiter.nanosUntilPermit(now);
+            if (wait > 0) {
+                now += wait;
+                continue;
+            }
+            limiter.acquire(now);
+            if (size == grants.length) {
+                grants = Arrays.copyOf(grants, size * 2);
+            }
+            grants[size++] = now;
+        }
+        return Arrays.copyOf(grants, size);
+    }
+
+    /**
+     * Наибольшее количество выдач в полуинтервале [t, t + window) по всем t
+     */
+    static int worstWindow(long[] grants, long windowNanos) {
+        int worst = 0;
+        int tail = 0;
+        for (int head = 0; head < grants.length; head++) {
+            while (grants[head] - grants[tail] >= windowNanos) {
+                tail++;
+            }
+            worst = Math.max(worst, head - tail + 1);
+        }
+        return worst;
+    }
+
+    private static long[] concat(long[] first, long[] second) {
+        long[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
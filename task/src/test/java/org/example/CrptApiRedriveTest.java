@@ -0,0 +1,98 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Повторная постановка недоставленных запросов: остановка сервиса во время постановки не теряет запросы
+ */
+class CrptApiRedriveTest {
+
+    private static final int DEAD_LETTERS = 200;
+
+    private HttpServer server;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.readAllBytes();
+            }
+            hits.incrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void shutdownDuringRedriveKeepsEveryRequest() throws Exception {
+        ListDeadLetterSink sink = new ListDeadLetterSink();
+        for (int i = 0; i < DEAD_LETTERS; i++) {
+            sink.accept(new CrptApi.DeadLetter("{\"doc_id\":\"" + i + "\"}", List.of(), 500, null));
+        }
+        CrptApi api = CrptApi.builder()
+                .requestLimit(100, TimeUnit.SECONDS)
+                .requestUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/"))
+                .deadLetterSink(sink)
+                .logLevel(CrptApi.LogLevel.OFF)
+                .build();
+        api.redrive(1);
+        TimeUnit.MILLISECONDS.sleep(300);
+        List<CrptApi.RequestBodyDTO> unsent = api.shutdownService();
+        // Ответы на запросы, отправленные до остановки, ещё могут быть в пути
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        assertTrue(sink.size() > 0, "redrive should be stopped before it finishes");
+        assertEquals(DEAD_LETTERS, hits.get() + unsent.size() + sink.size());
+    }
+
+    /**
+     * Хранилище в памяти; запросы, возвращённые во время выгрузки, остаются до следующей выгрузки
+     */
+    private static final class ListDeadLetterSink implements CrptApi.DeadLetterSink {
+        private final List<CrptApi.DeadLetter> deadLetters = new ArrayList<>();
+
+        @Override
+        public synchronized void accept(CrptApi.DeadLetter deadLetter) {
+            deadLetters.add(deadLetter);
+        }
+
+        @Override
+        public void drainTo(Consumer<CrptApi.DeadLetter> consumer) {
+            List<CrptApi.DeadLetter> drained;
+            synchronized (this) {
+                drained = new ArrayList<>(deadLetters);
+                deadLetters.clear();
+            }
+            drained.forEach(consumer);
+        }
+
+        synchronized int size() {
+            return deadLetters.size();
+        }
+    }
+}
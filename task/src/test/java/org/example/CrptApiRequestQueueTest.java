@@ -0,0 +1,62 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ограниченные очереди запросов и политика DROP_OLDEST
+ */
+class CrptApiRequestQueueTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void linkedQueuePollOldestTakesHeadAndFreesPlace() throws Exception {
+        CrptApi.LinkedRequestQueue queue = new CrptApi.LinkedRequestQueue(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(record(i)));
+        }
+        assertFalse(queue.offer(record(3)));
+
+        assertEquals(0, number(queue.pollOldest()));
+        assertTrue(queue.offer(record(3)));
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, number(queue.poll(0)));
+        }
+        assertNull(queue.pollOldest());
+    }
+
+    @Test
+    void queuesWithoutProducerSidePollRejectPollOldest() throws Exception {
+        CrptApi.SpillingRequestQueue spilling = new CrptApi.SpillingRequestQueue(new CrptApi.LinkedRequestQueue(1), directory);
+        try {
+            assertThrows(UnsupportedOperationException.class, spilling::pollOldest);
+        } finally {
+            spilling.drainTo(new ArrayList<>());
+        }
+        assertThrows(IllegalStateException.class, () -> CrptApi.builder()
+                .ringBuffer(8)
+                .overflowPolicy(CrptApi.OverflowPolicy.DROP_OLDEST)
+                .build());
+    }
+
+    private static CrptApi.RequestRecord record(int number) {
+        byte[] requestBody = Integer.toString(number).getBytes(StandardCharsets.UTF_8);
+        return new CrptApi.RequestRecord(null, new CrptApi.HeapPayload(requestBody), null, null, null);
+    }
+
+    private static int number(CrptApi.RequestRecord requestRecord) {
+        return Integer.parseInt(new String(requestRecord.payload().toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Кольцевой буфер с несколькими производителями и одним потребителем
+ */
+class CrptApiRingBufferTest {
+
+    @Test
+    void capacityIsRoundedUpToPowerOfTwoAndAtLeastTwo() {
+        CrptApi.MpscRingBuffer<Integer> buffer = new CrptApi.MpscRingBuffer<>(5);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(8));
+
+        CrptApi.MpscRingBuffer<Integer> single = new CrptApi.MpscRingBuffer<>(1);
+        assertTrue(single.offer(0));
+        assertTrue(single.offer(1));
+        assertFalse(single.offer(2));
+        assertEquals(0, single.poll());
+        assertEquals(1, single.poll());
+        assertThrows(IllegalArgumentException.class, () -> new CrptApi.MpscRingBuffer<>(0));
+    }
+
+    @Test
+    void elementsArePolledInOfferOrderAcrossWrapAround() {
+        CrptApi.MpscRingBuffer<Integer> buffer = new CrptApi.MpscRingBuffer<>(4);
+        int offered = 0;
+        int polled = 0;
+        // Заполнение и извлечение вразнобой, позиции много раз проходят через конец массива
+        for (int round = 0; round < 1000; round++) {
+            while (buffer.offer(offered)) {
+                offered++;
+            }
+            assertEquals(polled + 4, offered);
+            for (int i = 0; i < 1 + round % 4; i++) {
+                assertEquals(polled++, buffer.poll());
+            }
+        }
+        for (Integer element = buffer.poll(); element != null; element = buffer.poll()) {
+            assertEquals(polled++, element);
+        }
+        assertEquals(offered, polled);
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void concurrentProducersKeepTheirOwnOrder() throws Exception {
+        int producers = 4;
+        int perProducer = 50_000;
+        CrptApi.MpscRingBuffer<long[]> buffer = new CrptApi.MpscRingBuffer<>(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        buffer.put(new long[]{producer, i});
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[p].start();
+        }
+        long[] next = new long[producers];
+        for (int i = 0; i < producers * perProducer; i++) {
+            long[] element = buffer.poll(5, TimeUnit.SECONDS);
+            assertNotNull(element, "element " + i);
+            assertEquals(next[(int) element[0]]++, element[1]);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void timedPollAndOfferGiveUpAfterTimeout() throws Exception {
+        CrptApi.MpscRingBuffer<Integer> buffer = new CrptApi.MpscRingBuffer<>(2);
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(buffer.offer(1, 10, TimeUnit.MILLISECONDS));
+        assertTrue(buffer.offer(2, 10, TimeUnit.MILLISECONDS));
+        assertFalse(buffer.offer(3, 10, TimeUnit.MILLISECONDS));
+        assertEquals(1, buffer.poll(10, TimeUnit.MILLISECONDS));
+    }
+}
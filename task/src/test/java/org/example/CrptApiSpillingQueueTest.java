@@ -0,0 +1,106 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Очередь с переполнением на диск
+ */
+class CrptApiSpillingQueueTest {
+
+    private static final long POLL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Больше двух сегментов: записи проходят через закрытые сегменты и через записываемый
+     */
+    private static final int RECORDS = 20_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void spilledRecordsArePrefetchedInArrivalOrder() throws Exception {
+        CrptApi.SpillingRequestQueue queue = new CrptApi.SpillingRequestQueue(new CrptApi.LinkedRequestQueue(4), directory);
+        int offered = 0;
+        int polled = 0;
+        for (; offered < 10; offered++) {
+            assertTrue(queue.offer(record(offered)));
+        }
+        // Память освобождается, пока на диске есть записи: новые записи всё равно идут на диск за ними
+        for (; polled < 3; polled++) {
+            assertEquals(polled, number(queue.poll(POLL_NANOS)));
+        }
+        for (; offered < RECORDS; offered++) {
+            assertTrue(queue.offer(record(offered)));
+        }
+        for (; polled < RECORDS; polled++) {
+            CrptApi.RequestRecord requestRecord = queue.poll(POLL_NANOS);
+            assertNotNull(requestRecord, "record " + polled);
+            assertEquals(polled, number(requestRecord));
+        }
+        queue.drainTo(new ArrayList<>());
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void concurrentProducerAndConsumerKeepArrivalOrder() throws Exception {
+        CrptApi.SpillingRequestQueue queue = new CrptApi.SpillingRequestQueue(new CrptApi.LinkedRequestQueue(16), directory);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < RECORDS; i++) {
+                queue.offer(record(i));
+            }
+        });
+        producer.start();
+        for (int i = 0; i < RECORDS; i++) {
+            CrptApi.RequestRecord requestRecord = queue.poll(POLL_NANOS);
+            assertNotNull(requestRecord, "record " + i);
+            assertEquals(i, number(requestRecord));
+        }
+        producer.join();
+        queue.drainTo(new ArrayList<>());
+    }
+
+    @Test
+    void drainReturnsMemoryThenSpilledRecordsInOrder() throws Exception {
+        CrptApi.SpillingRequestQueue queue = new CrptApi.SpillingRequestQueue(new CrptApi.LinkedRequestQueue(4), directory);
+        for (int i = 0; i < RECORDS; i++) {
+            queue.offer(record(i));
+        }
+        List<CrptApi.RequestRecord> drained = new ArrayList<>();
+        queue.drainTo(drained);
+
+        assertEquals(RECORDS, drained.size());
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals(i, number(drained.get(i)));
+        }
+        assertEquals(0, spillFiles());
+    }
+
+    private static CrptApi.RequestRecord record(int number) {
+        byte[] requestBody = Integer.toString(number).getBytes(StandardCharsets.UTF_8);
+        return new CrptApi.RequestRecord(null, new CrptApi.HeapPayload(requestBody), null, null, null);
+    }
+
+    private static int number(CrptApi.RequestRecord requestRecord) {
+        return Integer.parseInt(new String(requestRecord.payload().toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private long spillFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}